@@ -0,0 +1,164 @@
+package edu.mit.csail.jasongao.roadrunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Point-in-polygon microbenchmark: 200 five-vertex regions on a grid and
+ * 2000 random points, timed through the old List-of-vertices test that
+ * Region.contains replaced, the packed Region.contains, and RegionIndex.find.
+ * Checks that all three classify every point the same way. Runs on a plain
+ * JVM: compile it together with src against android.jar, then run
+ * edu.mit.csail.jasongao.roadrunner.RegionBench with android.jar and the
+ * classes on the classpath.
+ */
+public class RegionBench {
+
+	static final int REGIONS = 200;
+	static final int POINTS = 2000;
+	static final int PASSES = 200;
+
+	/** Vertex read through getters, as the old List<Location> was */
+	private static class Vertex {
+		private final double lat, lng;
+
+		Vertex(double lat_, double lng_) {
+			this.lat = lat_;
+			this.lng = lng_;
+		}
+
+		double getLatitude() {
+			return lat;
+		}
+
+		double getLongitude() {
+			return lng;
+		}
+	}
+
+	/** The crossing test Region.contains used before vertices were packed */
+	static boolean listContains(List<Vertex> vertices, double y, double x) {
+		int polySides = vertices.size();
+		boolean oddTransitions = false;
+
+		for (int i = 0, j = polySides - 1; i < polySides; j = i++) {
+			if ((vertices.get(i).getLatitude() < y && vertices.get(j)
+					.getLatitude() >= y)
+					|| (vertices.get(j).getLatitude() < y && vertices.get(i)
+							.getLatitude() >= y)) {
+				if (vertices.get(i).getLongitude()
+						+ (y - vertices.get(i).getLatitude())
+						/ (vertices.get(j).getLatitude() - vertices.get(i)
+								.getLatitude())
+						* (vertices.get(j).getLongitude() - vertices.get(i)
+								.getLongitude()) < x) {
+					oddTransitions = !oddTransitions;
+				}
+			}
+		}
+		return oddTransitions;
+	}
+
+	public static void main(String[] args) {
+		Random rand = new Random(42);
+
+		// pentagons on a 20 x 10 grid of unit cells
+		List<Region> rs = new ArrayList<Region>();
+		List<List<Vertex>> lists = new ArrayList<List<Vertex>>();
+		for (int k = 0; k < REGIONS; k++) {
+			double cLat = k / 20 + 0.5, cLng = k % 20 + 0.5;
+			Region r = new Region("R" + k);
+			List<Vertex> vs = new ArrayList<Vertex>();
+			for (int v = 0; v < 5; v++) {
+				double a = 2 * Math.PI * v / 5;
+				double lat = cLat + 0.45 * Math.sin(a);
+				double lng = cLng + 0.45 * Math.cos(a);
+				r.addVertex(lat, lng);
+				vs.add(new Vertex(lat, lng));
+			}
+			rs.add(r);
+			lists.add(vs);
+		}
+		RegionIndex idx = new RegionIndex(rs);
+
+		double[] lats = new double[POINTS], lngs = new double[POINTS];
+		for (int p = 0; p < POINTS; p++) {
+			lats[p] = rand.nextDouble() * 10;
+			lngs[p] = rand.nextDouble() * 20;
+		}
+
+		// every point must land in the same region (or none) all three ways
+		int inside = 0;
+		for (int p = 0; p < POINTS; p++) {
+			int list = -1, packed = -1;
+			for (int k = 0; k < REGIONS; k++) {
+				if (list < 0 && listContains(lists.get(k), lats[p], lngs[p])) {
+					list = k;
+				}
+				if (packed < 0 && rs.get(k).contains(lats[p], lngs[p])) {
+					packed = k;
+				}
+			}
+			Region found = idx.find(lats[p], lngs[p]);
+			int indexed = (found != null) ? found.index : -1;
+			if (list != packed || packed != indexed) {
+				throw new IllegalStateException(String.format(
+						"point %d: list %d, packed %d, index %d", p, list,
+						packed, indexed));
+			}
+			if (packed >= 0) {
+				inside++;
+			}
+		}
+		System.out.println(String.format(
+				"%d regions, %d points, %d inside a region", REGIONS, POINTS,
+				inside));
+
+		// each is timed twice, the first run is warmup
+		for (int run = 0; run < 2; run++) {
+			long sink = 0;
+
+			long start = System.nanoTime();
+			for (int pass = 0; pass < PASSES; pass++) {
+				for (int p = 0; p < POINTS; p++) {
+					for (int k = 0; k < REGIONS; k++) {
+						if (listContains(lists.get(k), lats[p], lngs[p])) {
+							sink++;
+						}
+					}
+				}
+			}
+			long listNs = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int pass = 0; pass < PASSES; pass++) {
+				for (int p = 0; p < POINTS; p++) {
+					for (int k = 0; k < REGIONS; k++) {
+						if (rs.get(k).contains(lats[p], lngs[p])) {
+							sink++;
+						}
+					}
+				}
+			}
+			long packedNs = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int pass = 0; pass < PASSES; pass++) {
+				for (int p = 0; p < POINTS; p++) {
+					if (idx.find(lats[p], lngs[p]) != null) {
+						sink++;
+					}
+				}
+			}
+			long findNs = System.nanoTime() - start;
+
+			System.out.println(String.format(
+					"%s ms per pass: list %.2f, packed %.2f (%.1fx), "
+							+ "index find %.3f (%d)",
+					(run == 0) ? "warmup" : "timed", listNs / 1e6 / PASSES,
+					packedNs / 1e6 / PASSES, (double) listNs / packedNs,
+					findNs / 1e6 / PASSES, sink));
+		}
+	}
+}
@@ -4,16 +4,20 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.util.Set;
+import java.util.BitSet;
+import java.util.List;
 
 import android.location.Location;
 
 public class AdhocPacket implements Serializable {
-	private static final long serialVersionUID = 202L;
+	private static final long serialVersionUID = 203L;
 
 	public final static int ANNOUNCE = 0;
 	public final static int TOKEN_REQUEST = 1;
 	public final static int TOKEN_SEND = 2;
+	public final static int TOKEN_ACK = 3; // nonce is the TOKEN_SEND's
+	public final static int TOKEN_BUNDLE_REQUEST = 4; // regions in tokensWanted
+	public final static int TOKEN_BUNDLE_SEND = 5; // several tokens at once
 
 	/** Announcement or token transfer? */
 	public int type = 0;
@@ -31,16 +35,37 @@ public class AdhocPacket implements Serializable {
 	public long timestamp;
 	public long src, dst = -1;
 	public long nonce;
+	public int epoch; // sender's run; its nonces restart with a new one
 
 	private transient Location loc;
-	private double lat, lng;
-	private float speed, bearing;
+	double lat, lng;
+	float speed, bearing;
 
-	public Set<String> tokensOffered; // Regions for which I am offering tokens
+	/** Regions for which I am offering tokens, by Region.index */
+	public BitSet tokensOffered;
+
+	/** Only for ANNOUNCE: offers relative to the offersBase snapshot */
+	public int offersVersion, offersBase;
+	public boolean offersFull = true; // tokensOffered is the whole set
+	public BitSet tokensRemoved; // if not offersFull, since offersBase
+	public long resync = -1; // vehicle we want a full snapshot from
+	public BitSet tokensWanted; // regions of our pending GETs, may be null
+
+	/** Only for TOKEN_SEND: sent unasked in reply to tokensWanted */
+	public boolean pushed = false;
+
+	/** Only for TOKEN_BUNDLE_SEND: done RES_GETs carrying the tokens */
+	public List<ResRequest> tokens;
+
+	/** Only for TOKEN_ACK: receiver refused the token, take it back */
+	public boolean rejected = false;
+	public BitSet tokensRejected; // regions refused from a bundle, may be null
 	public int dataActivity = -1; // dataActivity state from TelephonyManager
 	public boolean triggerAnnounce = false; // sender wants an announcement back
 
 	public int length; // length of serialized packet in bytes
+	int dictionaryTag; // sender's RegionIndex.tag, Java-serialized packets only
+	transient long queuedAt; // when handed to AdhocSenderThread
 
 	public AdhocPacket(long src_, Location loc) {
 		timestamp = System.currentTimeMillis();
@@ -58,6 +83,10 @@ public class AdhocPacket implements Serializable {
 		}
 	}
 
+	/** Empty packet for AdhocPacketCodec to decode into */
+	AdhocPacket() {
+	}
+
 	public Location getLocation() {
 		return this.loc;
 	}
@@ -73,8 +102,51 @@ public class AdhocPacket implements Serializable {
 	private void readObject(ObjectInputStream in) throws IOException,
 			ClassNotFoundException {
 		in.defaultReadObject();
-		// rebuild Location object
-		loc = new Location("");
+		rebuildLocation();
+	}
+
+	/** Reset to an empty packet so a pooled instance can be decoded into */
+	void clear() {
+		type = 0;
+		region = null;
+		issued = expires = 0;
+		tokenString = signature = null;
+		timestamp = 0;
+		src = 0;
+		dst = -1;
+		nonce = 0;
+		epoch = 0;
+		lat = lng = 0;
+		speed = bearing = 0;
+		if (tokensOffered != null) {
+			tokensOffered.clear();
+		}
+		offersVersion = offersBase = 0;
+		offersFull = true;
+		if (tokensRemoved != null) {
+			tokensRemoved.clear();
+		}
+		resync = -1;
+		if (tokensWanted != null) {
+			tokensWanted.clear();
+		}
+		pushed = false;
+		tokens = null;
+		rejected = false;
+		if (tokensRejected != null) {
+			tokensRejected.clear();
+		}
+		dataActivity = -1;
+		triggerAnnounce = false;
+		length = 0;
+		dictionaryTag = 0;
+	}
+
+	/** Rebuild the Location object from the serialized fields */
+	void rebuildLocation() {
+		if (loc == null) {
+			loc = new Location("");
+		}
 		loc.setLatitude(lat);
 		loc.setLongitude(lng);
 		loc.setSpeed(speed);
@@ -84,7 +156,10 @@ public class AdhocPacket implements Serializable {
 	@Override
 	public String toString() {
 		return String
-				.format("AdhocPacket[src=%d, lng=%f, lat=%f, spd=%f, bearing=%f, offers=%s, length=%dbytes]",
-						src, lng, lat, speed, bearing, tokensOffered, length);
+				.format("AdhocPacket[src=%d, lng=%f, lat=%f, spd=%f, bearing=%f, offers=%s%s%s, v%d/%d, length=%dbytes]",
+						src, lng, lat, speed, bearing, offersFull ? ""
+								: "+", tokensOffered, offersFull ? ""
+								: " -" + tokensRemoved, offersVersion,
+						offersBase, length);
 	}
 }
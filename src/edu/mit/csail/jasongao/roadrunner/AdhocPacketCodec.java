@@ -0,0 +1,619 @@
+package edu.mit.csail.jasongao.roadrunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+
+/**
+ * Hand-rolled binary encoding of AdhocPacket. Every packet starts with a
+ * fixed-layout header, followed by a body that depends on the type:
+ *
+ * <pre>
+ * 0  byte   MAGIC
+ * 1  byte   VERSION
+ * 2  byte   type
+ * 3  byte   flags (FLAG_*)
+ * 4  int    src
+ * 8  int    dst (-1 for broadcast)
+ * 12 double lat
+ * 20 double lng
+ * 28 float  speed
+ * 32 float  bearing
+ * 36 long   timestamp
+ * 44 int    nonce
+ * 48 byte   dataActivity
+ * 49 int    dictionary tag (RegionIndex.tag, 0 if none)
+ * 53 int    epoch
+ *
+ * ANNOUNCE:      int offersVersion, int offersBase, regions tokensOffered,
+ *                regions tokensRemoved (only without FLAG_OFFERS_FULL),
+ *                int resync, regions tokensWanted (only with FLAG_WANTED)
+ * TOKEN_REQUEST: region region
+ * TOKEN_SEND:    region region, long issued, long expires,
+ *                string tokenString, string signature
+ * TOKEN_ACK:     regions tokensRejected (only with FLAG_REJECTED_SET);
+ *                nonce is the acknowledged TOKEN_SEND's or bundle's,
+ *                FLAG_REJECTED if all its tokens were refused
+ * TOKEN_BUNDLE_REQUEST: regions tokensWanted
+ * TOKEN_BUNDLE_SEND:    short count, count * (region region, long issued,
+ *                       long expires, string tokenString, string signature)
+ * </pre>
+ *
+ * Strings are a short byte length (-1 for null) followed by UTF-8 bytes.
+ * Regions are numbered by their index in the dictionary, the region set set
+ * with setDictionary; packets whose tag differs from ours are rejected. A
+ * region is a varint of index + 1, or 0 followed by the id string for one
+ * outside the dictionary. A region set is a byte kind then either a bitmap
+ * (varint byte count, bit i of the map for index i) or a list (varint
+ * count, varint gaps between successive indexes), whichever is shorter.
+ * Java serialization streams start with 0xAC, so decoders can tell the two
+ * encodings apart. Neither is understood by builds before the region
+ * indexes; the serialized one only serves peers with ADHOC_BINARY_CODEC
+ * off.
+ *
+ * A message larger than ADHOC_MAX_PACKET_SIZE, in either encoding, is sent
+ * as up to MAX_FRAGMENTS datagrams, each a FRAGMENT_HEADER_SIZE header and
+ * then the next FRAGMENT_PAYLOAD bytes of the message (the last may be
+ * shorter). src and dst sit where they do in the packet header, so the
+ * receiver can filter fragments before reassembling them:
+ *
+ * <pre>
+ * 0  byte   FRAGMENT_MAGIC
+ * 1  byte   VERSION
+ * 2  byte   fragment index
+ * 3  byte   fragment count
+ * 4  int    src
+ * 8  int    dst (-1 for broadcast)
+ * 12 int    message id, per sender
+ * </pre>
+ */
+public class AdhocPacketCodec {
+	static final byte MAGIC = 0x52; // 'R'
+	static final byte VERSION = 4;
+	static final int HEADER_SIZE = 57;
+
+	static final int FLAG_TRIGGER_ANNOUNCE = 0x01;
+	static final int FLAG_OFFERS_FULL = 0x02;
+	static final int FLAG_WANTED = 0x04;
+	static final int FLAG_PUSHED = 0x08;
+	static final int FLAG_REJECTED = 0x10;
+	static final int FLAG_REJECTED_SET = 0x20;
+
+	/** Header field offsets, for peeking without a full decode */
+	static final int OFFSET_TYPE = 2;
+	static final int OFFSET_SRC = 4;
+	static final int OFFSET_DST = 8;
+	static final int OFFSET_LAT = 12;
+	static final int OFFSET_LNG = 20;
+
+	/** Fragments of a message too large for one datagram */
+	static final byte FRAGMENT_MAGIC = 0x46; // 'F'
+	static final int FRAGMENT_HEADER_SIZE = 16;
+	static final int FRAGMENT_PAYLOAD = Globals.ADHOC_MAX_PACKET_SIZE
+			- FRAGMENT_HEADER_SIZE;
+	static final int MAX_FRAGMENTS = 255;
+	static final int OFFSET_FRAGMENT_INDEX = 2;
+	static final int OFFSET_FRAGMENT_COUNT = 3;
+	static final int OFFSET_MESSAGE_ID = 12;
+
+	/** Region set encodings */
+	static final byte REGIONS_LIST = 0;
+	static final byte REGIONS_BITMAP = 1;
+
+	/** Region set shared with peers, null until the service loads one */
+	private static volatile RegionIndex dictionary;
+
+	/** Number regions by their index in regions from now on */
+	public static void setDictionary(RegionIndex regions) {
+		dictionary = regions;
+	}
+
+	private static int dictionaryTag(RegionIndex dict) {
+		return (dict != null) ? dict.tag() : 0;
+	}
+
+	/** Encode p into out at its current position. */
+	public static void encode(AdhocPacket p, ByteBuffer out) {
+		RegionIndex dict = dictionary;
+		out.put(MAGIC);
+		out.put(VERSION);
+		out.put((byte) p.type);
+		boolean wanted = p.tokensWanted != null && !p.tokensWanted.isEmpty();
+		boolean rejectedSet = p.tokensRejected != null
+				&& !p.tokensRejected.isEmpty();
+		int flags = (p.triggerAnnounce ? FLAG_TRIGGER_ANNOUNCE : 0)
+				| (p.offersFull ? FLAG_OFFERS_FULL : 0)
+				| (wanted ? FLAG_WANTED : 0) | (p.pushed ? FLAG_PUSHED : 0)
+				| (p.rejected ? FLAG_REJECTED : 0)
+				| (rejectedSet ? FLAG_REJECTED_SET : 0);
+		out.put((byte) flags);
+		out.putInt((int) p.src);
+		out.putInt((int) p.dst);
+		out.putDouble(p.lat);
+		out.putDouble(p.lng);
+		out.putFloat(p.speed);
+		out.putFloat(p.bearing);
+		out.putLong(p.timestamp);
+		out.putInt((int) p.nonce);
+		out.put((byte) p.dataActivity);
+		out.putInt(dictionaryTag(dict));
+		out.putInt(p.epoch);
+
+		switch (p.type) {
+		case AdhocPacket.ANNOUNCE:
+			out.putInt(p.offersVersion);
+			out.putInt(p.offersBase);
+			putRegions(out, p.tokensOffered);
+			if (!p.offersFull) {
+				putRegions(out, p.tokensRemoved);
+			}
+			out.putInt((int) p.resync);
+			if (wanted) {
+				putRegions(out, p.tokensWanted);
+			}
+			break;
+		case AdhocPacket.TOKEN_REQUEST:
+			putRegion(out, dict, p.region);
+			break;
+		case AdhocPacket.TOKEN_SEND:
+			putRegion(out, dict, p.region);
+			out.putLong(p.issued);
+			out.putLong(p.expires);
+			putString(out, p.tokenString);
+			putString(out, p.signature);
+			break;
+		case AdhocPacket.TOKEN_ACK:
+			if (rejectedSet) {
+				putRegions(out, p.tokensRejected);
+			}
+			break;
+		case AdhocPacket.TOKEN_BUNDLE_REQUEST:
+			putRegions(out, p.tokensWanted);
+			break;
+		case AdhocPacket.TOKEN_BUNDLE_SEND:
+			out.putShort((short) p.tokens.size());
+			for (ResRequest t : p.tokens) {
+				putRegion(out, dict, t.regionId);
+				out.putLong(t.issued);
+				out.putLong(t.expires);
+				putString(out, t.tokenString);
+				putString(out, t.signature);
+			}
+			break;
+		}
+	}
+
+	/** Decode a binary packet starting at in's current position. */
+	public static AdhocPacket decode(ByteBuffer in) throws IOException {
+		return decode(in, new AdhocPacket());
+	}
+
+	/**
+	 * Decode a binary packet into p, reusing its Location and offer set so a
+	 * pooled packet can be filled without allocating.
+	 */
+	public static AdhocPacket decode(ByteBuffer in, AdhocPacket p)
+			throws IOException {
+		int start = in.position();
+		try {
+			if (in.get() != MAGIC) {
+				throw new IOException("not a binary adhoc packet");
+			}
+			byte version = in.get();
+			if (version != VERSION) {
+				throw new IOException("unsupported adhoc packet version "
+						+ version);
+			}
+
+			p.clear();
+			p.type = in.get();
+			int flags = in.get();
+			p.triggerAnnounce = (flags & FLAG_TRIGGER_ANNOUNCE) != 0;
+			p.offersFull = (flags & FLAG_OFFERS_FULL) != 0;
+			p.pushed = (flags & FLAG_PUSHED) != 0;
+			p.rejected = (flags & FLAG_REJECTED) != 0;
+			p.src = in.getInt();
+			p.dst = in.getInt();
+			p.lat = in.getDouble();
+			p.lng = in.getDouble();
+			p.speed = in.getFloat();
+			p.bearing = in.getFloat();
+			p.timestamp = in.getLong();
+			p.nonce = in.getInt();
+			p.dataActivity = in.get();
+			RegionIndex dict = dictionary;
+			int tag = in.getInt();
+			if (tag != dictionaryTag(dict)) {
+				throw new IOException(String.format(
+						"region dictionary %08x does not match ours", tag));
+			}
+			p.epoch = in.getInt();
+
+			switch (p.type) {
+			case AdhocPacket.ANNOUNCE:
+				p.offersVersion = in.getInt();
+				p.offersBase = in.getInt();
+				if (p.tokensOffered == null) {
+					p.tokensOffered = new BitSet();
+				}
+				getRegions(in, dict, p.tokensOffered);
+				if (!p.offersFull) {
+					if (p.tokensRemoved == null) {
+						p.tokensRemoved = new BitSet();
+					}
+					getRegions(in, dict, p.tokensRemoved);
+				}
+				p.resync = in.getInt();
+				if ((flags & FLAG_WANTED) != 0) {
+					if (p.tokensWanted == null) {
+						p.tokensWanted = new BitSet();
+					}
+					getRegions(in, dict, p.tokensWanted);
+				}
+				break;
+			case AdhocPacket.TOKEN_REQUEST:
+				p.region = getRegion(in, dict);
+				break;
+			case AdhocPacket.TOKEN_SEND:
+				p.region = getRegion(in, dict);
+				p.issued = in.getLong();
+				p.expires = in.getLong();
+				p.tokenString = getString(in);
+				p.signature = getString(in);
+				break;
+			case AdhocPacket.TOKEN_ACK:
+				if ((flags & FLAG_REJECTED_SET) != 0) {
+					if (p.tokensRejected == null) {
+						p.tokensRejected = new BitSet();
+					}
+					getRegions(in, dict, p.tokensRejected);
+				}
+				break;
+			case AdhocPacket.TOKEN_BUNDLE_REQUEST:
+				if (p.tokensWanted == null) {
+					p.tokensWanted = new BitSet();
+				}
+				getRegions(in, dict, p.tokensWanted);
+				break;
+			case AdhocPacket.TOKEN_BUNDLE_SEND:
+				int count = in.getShort();
+				p.tokens = new ArrayList<ResRequest>(count);
+				for (int i = 0; i < count; i++) {
+					ResRequest t = new ResRequest(p.src, ResRequest.RES_GET,
+							getRegion(in, dict));
+					t.issued = in.getLong();
+					t.expires = in.getLong();
+					t.tokenString = getString(in);
+					t.signature = getString(in);
+					p.tokens.add(t);
+				}
+				break;
+			default:
+				throw new IOException("unknown adhoc packet type " + p.type);
+			}
+
+			p.rebuildLocation();
+			p.length = in.position() - start;
+			return p;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("truncated adhoc packet");
+		} catch (RuntimeException e) {
+			// e.g. a negative count; whatever the sender did, drop it
+			throw new IOException("malformed adhoc packet: " + e);
+		}
+	}
+
+	/** True if buf holds a complete binary header at its position */
+	public static boolean hasHeader(ByteBuffer buf) {
+		return buf.remaining() >= HEADER_SIZE
+				&& buf.get(buf.position()) == MAGIC
+				&& buf.get(buf.position() + 1) == VERSION;
+	}
+
+	/** True if buf holds a fragment header at its position */
+	public static boolean isFragment(ByteBuffer buf) {
+		return buf.remaining() >= FRAGMENT_HEADER_SIZE
+				&& buf.get(buf.position()) == FRAGMENT_MAGIC
+				&& buf.get(buf.position() + 1) == VERSION;
+	}
+
+	/** Number of fragments a message of length bytes needs */
+	public static int fragmentCount(int length) {
+		return (length + FRAGMENT_PAYLOAD - 1) / FRAGMENT_PAYLOAD;
+	}
+
+	public static void putFragmentHeader(ByteBuffer out, long src, long dst,
+			int msgId, int index, int count) {
+		out.put(FRAGMENT_MAGIC);
+		out.put(VERSION);
+		out.put((byte) index);
+		out.put((byte) count);
+		out.putInt((int) src);
+		out.putInt((int) dst);
+		out.putInt(msgId);
+	}
+
+	public static int peekType(ByteBuffer buf) {
+		return buf.get(buf.position() + OFFSET_TYPE);
+	}
+
+	public static long peekSrc(ByteBuffer buf) {
+		return buf.getInt(buf.position() + OFFSET_SRC);
+	}
+
+	public static long peekDst(ByteBuffer buf) {
+		return buf.getInt(buf.position() + OFFSET_DST);
+	}
+
+	public static double peekLat(ByteBuffer buf) {
+		return buf.getDouble(buf.position() + OFFSET_LAT);
+	}
+
+	public static double peekLng(ByteBuffer buf) {
+		return buf.getDouble(buf.position() + OFFSET_LNG);
+	}
+
+	/** Serialize a packet for sending, in the configured encoding */
+	public static byte[] toBytes(AdhocPacket p) throws IOException {
+		if (Globals.ADHOC_BINARY_CODEC) {
+			ByteBuffer buf = ByteBuffer.allocate(Globals.ADHOC_MAX_MESSAGE_SIZE);
+			encode(p, buf);
+			byte[] data = new byte[buf.position()];
+			System.arraycopy(buf.array(), 0, data, 0, data.length);
+			return data;
+		} else {
+			p.dictionaryTag = dictionaryTag(dictionary);
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bos);
+			out.writeObject(p);
+			out.close();
+			return bos.toByteArray();
+		}
+	}
+
+	/**
+	 * Deserialize a received packet in either encoding. Serialized packets
+	 * get the checks decode() makes, so the service can trust either.
+	 */
+	public static AdhocPacket fromBytes(byte[] data, int length)
+			throws IOException {
+		if (length > 0 && data[0] == MAGIC) {
+			return decode(ByteBuffer.wrap(data, 0, length));
+		}
+
+		ObjectInputStream ois = new ObjectInputStream(
+				new ByteArrayInputStream(data, 0, length));
+		try {
+			AdhocPacket p = (AdhocPacket) ois.readObject();
+			p.length = length;
+			checkSerialized(p);
+			return p;
+		} catch (ClassNotFoundException e) {
+			throw new IOException("ClassNotFoundException: " + e.getMessage());
+		} finally {
+			ois.close();
+		}
+	}
+
+	/**
+	 * Reject a deserialized packet numbering regions by another dictionary,
+	 * with region indexes outside ours, or missing what its type needs
+	 */
+	private static void checkSerialized(AdhocPacket p) throws IOException {
+		RegionIndex dict = dictionary;
+		if (p.dictionaryTag != dictionaryTag(dict)) {
+			throw new IOException(String.format(
+					"region dictionary %08x does not match ours",
+					p.dictionaryTag));
+		}
+		int limit = (dict != null) ? dict.size() : 0;
+		checkRegions(p.tokensOffered, limit);
+		checkRegions(p.tokensRemoved, limit);
+		checkRegions(p.tokensWanted, limit);
+		checkRegions(p.tokensRejected, limit);
+
+		switch (p.type) {
+		case AdhocPacket.ANNOUNCE:
+		case AdhocPacket.TOKEN_REQUEST:
+		case AdhocPacket.TOKEN_SEND:
+		case AdhocPacket.TOKEN_ACK:
+			break;
+		case AdhocPacket.TOKEN_BUNDLE_REQUEST:
+			if (p.tokensWanted == null) {
+				throw new IOException("bundle request without regions");
+			}
+			break;
+		case AdhocPacket.TOKEN_BUNDLE_SEND:
+			if (p.tokens == null || p.tokens.contains(null)) {
+				throw new IOException("bundle without tokens");
+			}
+			break;
+		default:
+			throw new IOException("unknown adhoc packet type " + p.type);
+		}
+	}
+
+	private static void checkRegions(BitSet regions, int limit)
+			throws IOException {
+		if (regions != null && regions.length() > limit) {
+			throw new IOException("region index out of range "
+					+ (regions.length() - 1));
+		}
+	}
+
+	static void putString(ByteBuffer out, String s) {
+		if (s == null) {
+			out.putShort((short) -1);
+			return;
+		}
+		byte[] b;
+		try {
+			b = s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		out.putShort((short) b.length);
+		out.put(b);
+	}
+
+	static String getString(ByteBuffer in) throws IOException {
+		int len = in.getShort();
+		if (len < 0) {
+			return null;
+		}
+		byte[] b = new byte[len];
+		in.get(b);
+		return new String(b, "UTF-8");
+	}
+
+	/** Upper bound on the bytes a token takes in a TOKEN_BUNDLE_SEND */
+	static int bundleEntrySize(ResRequest t) {
+		return 5 + 2 + utf8Length(t.regionId) + 8 + 8 + 2
+				+ utf8Length(t.tokenString) + 2 + utf8Length(t.signature);
+	}
+
+	private static int utf8Length(String s) {
+		if (s == null) {
+			return 0;
+		}
+		try {
+			return s.getBytes("UTF-8").length;
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** A region id as its dictionary index, if it has one */
+	static void putRegion(ByteBuffer out, RegionIndex dict, String id) {
+		int i = (dict != null && id != null) ? dict.indexOf(id) : -1;
+		if (i >= 0) {
+			putVarint(out, i + 1);
+		} else {
+			putVarint(out, 0);
+			putString(out, id);
+		}
+	}
+
+	static String getRegion(ByteBuffer in, RegionIndex dict)
+			throws IOException {
+		int v = getVarint(in);
+		if (v == 0) {
+			return getString(in);
+		}
+		if (dict == null || v < 0 || v > dict.size()) {
+			throw new IOException("region index out of range " + (v - 1));
+		}
+		return dict.id(v - 1);
+	}
+
+	/** A region set as a bitmap or a gap list, whichever is shorter */
+	static void putRegions(ByteBuffer out, BitSet regions) {
+		int count = (regions != null) ? regions.cardinality() : 0;
+		if (count == 0) {
+			out.put(REGIONS_LIST);
+			putVarint(out, 0);
+			return;
+		}
+
+		int mapBytes = (regions.length() + 7) / 8;
+		int listBytes = varintSize(count);
+		for (int i = regions.nextSetBit(0), prev = -1; i >= 0; prev = i, i = regions
+				.nextSetBit(i + 1)) {
+			listBytes += varintSize(i - prev - 1);
+		}
+
+		if (varintSize(mapBytes) + mapBytes < listBytes) {
+			out.put(REGIONS_BITMAP);
+			putVarint(out, mapBytes);
+			for (int b = 0; b < mapBytes; b++) {
+				int bits = 0;
+				for (int k = 0; k < 8; k++) {
+					if (regions.get(8 * b + k)) {
+						bits |= 1 << k;
+					}
+				}
+				out.put((byte) bits);
+			}
+		} else {
+			out.put(REGIONS_LIST);
+			putVarint(out, count);
+			for (int i = regions.nextSetBit(0), prev = -1; i >= 0; prev = i, i = regions
+					.nextSetBit(i + 1)) {
+				putVarint(out, i - prev - 1);
+			}
+		}
+	}
+
+	/** Read a region set into regions, which the caller has cleared */
+	static void getRegions(ByteBuffer in, RegionIndex dict, BitSet regions)
+			throws IOException {
+		int limit = (dict != null) ? dict.size() : 0;
+		byte kind = in.get();
+		int n = getVarint(in);
+		if (n > in.remaining()) {
+			throw new IOException("truncated region set");
+		}
+		if (kind == REGIONS_BITMAP) {
+			for (int b = 0; b < n; b++) {
+				int bits = in.get() & 0xff;
+				for (int k = 0; bits != 0; k++, bits >>>= 1) {
+					if ((bits & 1) != 0) {
+						setRegion(regions, 8 * b + k, limit);
+					}
+				}
+			}
+		} else if (kind == REGIONS_LIST) {
+			for (int j = 0, i = -1; j < n; j++) {
+				i += getVarint(in) + 1;
+				setRegion(regions, i, limit);
+			}
+		} else {
+			throw new IOException("unknown region set encoding " + kind);
+		}
+	}
+
+	private static void setRegion(BitSet regions, int i, int limit)
+			throws IOException {
+		if (i < 0 || i >= limit) {
+			throw new IOException("region index out of range " + i);
+		}
+		regions.set(i);
+	}
+
+	/** Unsigned LEB128 */
+	static void putVarint(ByteBuffer out, int v) {
+		while ((v & ~0x7f) != 0) {
+			out.put((byte) ((v & 0x7f) | 0x80));
+			v >>>= 7;
+		}
+		out.put((byte) v);
+	}
+
+	static int getVarint(ByteBuffer in) throws IOException {
+		int v = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			byte b = in.get();
+			v |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return v;
+			}
+		}
+		throw new IOException("malformed varint");
+	}
+
+	static int varintSize(int v) {
+		int size = 1;
+		while ((v & ~0x7f) != 0) {
+			size++;
+			v >>>= 7;
+		}
+		return size;
+	}
+}
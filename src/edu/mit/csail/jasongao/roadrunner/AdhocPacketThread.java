@@ -1,18 +1,21 @@
 package edu.mit.csail.jasongao.roadrunner;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
 import java.net.NetworkInterface;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.Enumeration;
 
+import android.location.Location;
 import android.os.Handler;
 
 public class AdhocPacketThread extends Thread {
@@ -24,17 +27,63 @@ public class AdhocPacketThread extends Thread {
 	private boolean recvSocketOK = false;
 	private boolean sendSocketOK = false;
 
-	private DatagramSocket recvSocket;
-	private DatagramSocket sendSocket;
+	private DatagramChannel recvChannel;
+	private DatagramChannel sendChannel;
+
+	/**
+	 * With ADHOC_GEOCAST, one multicast socket both receives, in place of
+	 * recvChannel, and sends to our cell's group. DatagramChannel can't join
+	 * groups before Java 7. Broadcasts still arrive on it, and we broadcast
+	 * until our first fix puts us in a cell.
+	 */
+	private MulticastSocket geoSocket;
+	private GeocastGroups groups;
+	private final byte[] recvBytes = new byte[Globals.ADHOC_MAX_PACKET_SIZE];
+	private final DatagramPacket recvPacket = new DatagramPacket(recvBytes,
+			recvBytes.length);
+	private final byte[] sendBytes = new byte[Globals.ADHOC_MAX_PACKET_SIZE];
+	private final DatagramPacket sendPacket = new DatagramPacket(sendBytes,
+			sendBytes.length);
+
+	/**
+	 * Header filter state, set by the service: our id, our last fix and the
+	 * radio range. Packets for someone else or from out of range vehicles
+	 * are dropped here before their body is decoded.
+	 */
+	private volatile long filterId = -1;
+	private volatile boolean filterHasFix = false;
+	private volatile double filterLat, filterLng;
+	private final float[] distance = new float[1];
+	private volatile int dropped = 0; // written by the receive thread only
+
+	/** Messages arriving as several fragments */
+	private final AdhocReassembler reassembler = new AdhocReassembler();
+
+	/** Decoded packets waiting to be reused, see recycle() */
+	private final AdhocPacket[] pool = new AdhocPacket[Globals.ADHOC_PACKET_POOL_SIZE];
+	private int pooled = 0;
 
 	private InetAddress remoteIPAddress;
+	private InetSocketAddress remoteSocketAddress;
 	private InetAddress localIPAddress;
 
-	/** Send an UDP packet to the broadcast address */
-	public void sendData(byte[] sendData) throws IOException {
+	/**
+	 * Send an UDP packet to our geocast group, or to the broadcast address
+	 * if we have none
+	 */
+	public void sendData(ByteBuffer sendData) throws IOException {
 		try {
-			sendSocket.send(new DatagramPacket(sendData, sendData.length,
-					remoteIPAddress, Globals.ADHOC_SEND_PORT));
+			InetSocketAddress group = (groups != null) ? groups.sendGroup()
+					: null;
+			if (group == null) {
+				sendChannel.send(sendData, remoteSocketAddress);
+			} else {
+				int length = sendData.remaining();
+				sendData.get(sendBytes, 0, length);
+				sendPacket.setLength(length);
+				sendPacket.setSocketAddress(group);
+				geoSocket.send(sendPacket);
+			}
 		} catch (IOException e) {
 			sendSocketOK = false;
 			throw e;
@@ -70,9 +119,9 @@ public class AdhocPacketThread extends Thread {
 
 		// Figure out my local IP address
 		localIPAddress = null;
+		NetworkInterface intf;
 		try {
-			NetworkInterface intf = NetworkInterface
-					.getByName(Globals.ADHOC_IFACE_NAME);
+			intf = NetworkInterface.getByName(Globals.ADHOC_IFACE_NAME);
 
 			// Loop through all the addresses
 			for (Enumeration<InetAddress> enumIpAddr = intf.getInetAddresses(); enumIpAddr
@@ -99,14 +148,18 @@ public class AdhocPacketThread extends Thread {
 		try {
 			remoteIPAddress = InetAddress
 					.getByName(Globals.ADHOC_SEND_REMOTE_ADDRESS);
+			remoteSocketAddress = new InetSocketAddress(remoteIPAddress,
+					Globals.ADHOC_SEND_PORT);
 		} catch (UnknownHostException e1) {
 			log("Exception getting adhoc send address");
 			e1.printStackTrace();
 		}
 
-		// Send socket
+		// Send channel
 		try {
-			sendSocket = new DatagramSocket(50000); // any free port
+			sendChannel = DatagramChannel.open();
+			DatagramSocket sendSocket = sendChannel.socket();
+			sendSocket.bind(new InetSocketAddress(50000)); // any free port
 			log(String.format("sendSocket is bound to local address %s:%d",
 					sendSocket.getLocalAddress().getHostAddress(),
 					sendSocket.getLocalPort()));
@@ -114,26 +167,46 @@ public class AdhocPacketThread extends Thread {
 			log(String.format("sendSocket.getBroadcast() is %s",
 					(sendSocket.getBroadcast()) ? "true" : "false"));
 			sendSocketOK = true;
-		} catch (SocketException e1) {
+		} catch (IOException e1) {
 			log("Cannot setup send socket: " + e1.getMessage());
 			e1.printStackTrace();
 			return;
 		}
 
-		// Receive socket
-		try {
-			recvSocket = new DatagramSocket(Globals.ADHOC_RECV_PORT);
-			log(String.format("recvSocket is bound to local address %s:%d",
-					recvSocket.getLocalAddress().getHostAddress(),
-					recvSocket.getLocalPort()));
-			recvSocket.setBroadcast(true);
-			log(String.format("recvSocket.getBroadcast() is %s",
-					(recvSocket.getBroadcast()) ? "true" : "false"));
-			recvSocketOK = true;
-		} catch (SocketException e1) {
-			log("Cannot setup socket: " + e1.getMessage());
-			e1.printStackTrace();
-			return;
+		// Receive channel
+		if (Globals.ADHOC_GEOCAST) {
+			try {
+				geoSocket = new MulticastSocket(Globals.ADHOC_RECV_PORT);
+				geoSocket.setNetworkInterface(intf);
+				geoSocket.setTimeToLive(1);
+				geoSocket.setLoopbackMode(true); // no copies of our own
+				geoSocket.setBroadcast(true);
+				groups = new GeocastGroups(geoSocket, intf);
+				log(String.format("geocast socket bound to port %d on %s",
+						geoSocket.getLocalPort(), intf.getName()));
+				recvSocketOK = true;
+			} catch (IOException e1) {
+				log("Cannot setup geocast socket: " + e1.getMessage());
+				e1.printStackTrace();
+				return;
+			}
+		} else {
+			try {
+				recvChannel = DatagramChannel.open();
+				DatagramSocket recvSocket = recvChannel.socket();
+				recvSocket.bind(new InetSocketAddress(Globals.ADHOC_RECV_PORT));
+				log(String.format("recvSocket is bound to local address %s:%d",
+						recvSocket.getLocalAddress().getHostAddress(),
+						recvSocket.getLocalPort()));
+				recvSocket.setBroadcast(true);
+				log(String.format("recvSocket.getBroadcast() is %s",
+						(recvSocket.getBroadcast()) ? "true" : "false"));
+				recvSocketOK = true;
+			} catch (IOException e1) {
+				log("Cannot setup socket: " + e1.getMessage());
+				e1.printStackTrace();
+				return;
+			}
 		}
 
 		log("AdhocPacketThread started.");
@@ -141,36 +214,70 @@ public class AdhocPacketThread extends Thread {
 
 	/** Close the socket before exiting the application */
 	public synchronized void close() {
-		if (recvSocket != null && !recvSocket.isClosed()) {
-			recvSocket.close();
+		if (recvChannel != null && recvChannel.isOpen()) {
+			try {
+				recvChannel.close();
+			} catch (IOException e) {
+			}
 			log("closed adhoc recv socket");
 		}
-		if (sendSocket != null && !sendSocket.isClosed()) {
-			sendSocket.close();
+		if (sendChannel != null && sendChannel.isOpen()) {
+			try {
+				sendChannel.close();
+			} catch (IOException e) {
+			}
 			log("closed adhoc send socket");
 		}
+		if (geoSocket != null && !geoSocket.isClosed()) {
+			groups.leave();
+			geoSocket.close();
+			log("closed adhoc geocast socket");
+		}
 	}
 
-	/** Thread's receive loop for UDP packets */
+	/**
+	 * Thread's receive loop for UDP packets. Datagrams land in one reused
+	 * direct buffer and are decoded into pooled AdhocPackets, which the
+	 * service hands back through recycle() once it has handled them.
+	 * Fragments not meant for us are dropped on their header; the rest are
+	 * held until the whole message is in and then decoded the same way.
+	 */
 	@Override
 	public void run() {
-		byte[] receiveData = new byte[Globals.ADHOC_MAX_PACKET_SIZE];
+		ByteBuffer buf = ByteBuffer
+				.allocateDirect(Globals.ADHOC_MAX_PACKET_SIZE);
+		byte[] fallbackData = new byte[Globals.ADHOC_MAX_MESSAGE_SIZE];
 
 		try {
 			while (recvSocketOK && sendSocketOK) {
-				DatagramPacket dPacket = new DatagramPacket(receiveData,
-						receiveData.length);
-				recvSocket.receive(dPacket);
+				InetAddress from = receive(buf);
 
-				if (dPacket.getAddress().equals(localIPAddress))
+				if (from.equals(localIPAddress))
 					continue; // ignore our own UDP broadcasts
 
-				AdhocPacket p = readPacket(dPacket.getData(),
-						dPacket.getLength());
+				ByteBuffer msg = buf;
+				if (AdhocPacketCodec.isFragment(buf)) {
+					if (!addressed(buf)) {
+						dropped++;
+						continue;
+					}
+					msg = reassembler.offer(buf, System.currentTimeMillis());
+					if (msg == null)
+						continue; // waiting for the rest
+				}
+
+				if (AdhocPacketCodec.hasHeader(msg) && !accept(msg)) {
+					dropped++;
+					continue;
+				}
+
+				AdhocPacket p = readPacket(msg, fallbackData);
+				if (p == null)
+					continue;
 
 				/*
 				 * log_nodisplay(String.format(
-				 * "received %d byte adhoc packet type %d", dPacket.getLength(),
+				 * "received %d byte adhoc packet type %d", p.length,
 				 * p.type));
 				 */
 
@@ -185,32 +292,136 @@ public class AdhocPacketThread extends Thread {
 		log("AdhocPacketThread exiting.");
 	} // end run()
 
+	/** Receive the next datagram into buf and return its source */
+	private InetAddress receive(ByteBuffer buf) throws IOException {
+		buf.clear();
+		if (geoSocket == null) {
+			InetSocketAddress from = (InetSocketAddress) recvChannel
+					.receive(buf);
+			buf.flip();
+			return from.getAddress();
+		}
+		recvPacket.setLength(recvBytes.length);
+		geoSocket.receive(recvPacket);
+		buf.put(recvBytes, 0, recvPacket.getLength());
+		buf.flip();
+		return recvPacket.getAddress();
+	}
+
+	/** Move our geocast groups to follow a new location */
+	public void setCell(Location loc) {
+		if (groups == null || loc == null) {
+			return;
+		}
+		try {
+			if (groups.move(loc.getLatitude(), loc.getLongitude())) {
+				log_nodisplay("joined geocast groups around cell "
+						+ groups.cellName());
+			}
+		} catch (IOException e) {
+			log("error joining geocast groups: " + e.getMessage());
+		}
+	}
+
+	/** Update the header filter with our id and current location */
+	public void setFilter(long id, Location loc) {
+		filterId = id;
+		if (loc != null) {
+			filterLat = loc.getLatitude();
+			filterLng = loc.getLongitude();
+			filterHasFix = true;
+		} else {
+			filterHasFix = false;
+		}
+	}
+
+	/** Number of packets dropped by the header filter */
+	public int droppedCount() {
+		return dropped;
+	}
+
+	public String reassemblyStats() {
+		return reassembler.stats();
+	}
+
+	/**
+	 * Check a binary packet's header: it must be broadcast or addressed to
+	 * us, not our own, and sent from within radio range of our last fix.
+	 */
+	private boolean accept(ByteBuffer buf) {
+		if (!addressed(buf)) {
+			return false;
+		}
+		if (AdhocPacketCodec.peekType(buf) == AdhocPacket.TOKEN_ACK) {
+			return true; // the sender is waiting on it, whatever the range
+		}
+		if (!filterHasFix) {
+			return false; // service needs a fix to judge any link
+		}
+
+		Location.distanceBetween(filterLat, filterLng,
+				AdhocPacketCodec.peekLat(buf), AdhocPacketCodec.peekLng(buf),
+				distance);
+		int range = Globals.ADHOC_IFACE_NAME.equals("eth0") ? Globals.ADHOC_WIFI_RANGE
+				: Globals.ADHOC_DSRC_RANGE;
+		return distance[0] < range;
+	}
+
+	/** Broadcast or addressed to us, and not our own; packet or fragment */
+	private boolean addressed(ByteBuffer buf) {
+		long src = AdhocPacketCodec.peekSrc(buf);
+		long dst = AdhocPacketCodec.peekDst(buf);
+		return src != filterId && (dst == -1 || dst == filterId);
+	}
+
+	/** Take an AdhocPacket from the pool to decode into */
+	private synchronized AdhocPacket obtain() {
+		if (pooled == 0) {
+			return new AdhocPacket();
+		}
+		AdhocPacket p = pool[--pooled];
+		pool[pooled] = null;
+		return p;
+	}
+
+	/** Return a received packet to the pool once it has been handled */
+	public synchronized void recycle(AdhocPacket p) {
+		if (pooled < pool.length) {
+			pool[pooled++] = p;
+		}
+	}
+
 	/** Return our stored local IP address. */
 	public synchronized InetAddress getLocalAddress() {
 		return localIPAddress;
 	}
 
 	/**
-	 * Deserialize a UDP packet back into an AdhocPacket object
-	 * 
-	 * @throws Exception
+	 * Decode a UDP packet back into an AdhocPacket object, or null if it is
+	 * malformed. Java-serialized packets are copied out to fallbackData.
 	 */
-	private AdhocPacket readPacket(byte[] data, int length) {
-		AdhocPacket adhocPacket = null;
-		ByteArrayInputStream bis = new ByteArrayInputStream(data);
-		ObjectInputStream ois = null;
+	private AdhocPacket readPacket(ByteBuffer buf, byte[] fallbackData) {
 		try {
-			ois = new ObjectInputStream(bis);
-			adhocPacket = (AdhocPacket) ois.readObject();
-			ois.close();
+			if (buf.remaining() > 0
+					&& buf.get(buf.position()) == AdhocPacketCodec.MAGIC) {
+				AdhocPacket p = obtain();
+				try {
+					return AdhocPacketCodec.decode(buf, p);
+				} catch (IOException e) {
+					recycle(p);
+					throw e;
+				}
+			}
+			int length = buf.remaining();
+			buf.get(fallbackData, 0, length);
+			return AdhocPacketCodec.fromBytes(fallbackData, length);
 		} catch (IOException e) {
-			log("error on new ObjectInputStream: " + e.getMessage());
-			e.printStackTrace();
-		} catch (ClassNotFoundException e) {
-			log("ClassNotFoundException from ois: " + e.getMessage());
-			e.printStackTrace();
-		}
-		adhocPacket.length = length;
-		return adhocPacket;
+			log("error decoding adhoc packet: " + e.getMessage());
+			return null;
+		} catch (RuntimeException e) {
+			// a bad packet must not stop the receive loop
+			log("error decoding adhoc packet: " + e);
+			return null;
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,118 @@
+package edu.mit.csail.jasongao.roadrunner;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * Reassembles adhoc messages that were sent as several fragments. At most
+ * ADHOC_REASSEMBLY_SLOTS messages are in progress at once, each in a buffer
+ * allocated up front. A message not completed within
+ * ADHOC_REASSEMBLY_TIMEOUT is dropped, as is the oldest one when a new
+ * message finds every slot busy. Used from the receive thread only.
+ */
+public class AdhocReassembler {
+	private static final int PAYLOAD = AdhocPacketCodec.FRAGMENT_PAYLOAD;
+
+	private static class Slot {
+		final byte[] data = new byte[Globals.ADHOC_MAX_MESSAGE_SIZE];
+		final BitSet have = new BitSet();
+		boolean busy = false;
+		long src;
+		int msgId, count, received, length;
+		long started;
+	}
+
+	private final Slot[] slots = new Slot[Globals.ADHOC_REASSEMBLY_SLOTS];
+
+	/** Statistics */
+	private int completed, expired, evicted, malformed;
+
+	public AdhocReassembler() {
+		for (int i = 0; i < slots.length; i++) {
+			slots[i] = new Slot();
+		}
+	}
+
+	/**
+	 * Add a fragment. Returns the whole message once its last missing
+	 * fragment arrives, else null. The returned buffer is only valid until
+	 * the next call.
+	 */
+	public ByteBuffer offer(ByteBuffer frag, long now) {
+		int pos = frag.position();
+		int index = frag.get(pos + AdhocPacketCodec.OFFSET_FRAGMENT_INDEX) & 0xff;
+		int count = frag.get(pos + AdhocPacketCodec.OFFSET_FRAGMENT_COUNT) & 0xff;
+		long src = frag.getInt(pos + AdhocPacketCodec.OFFSET_SRC);
+		int msgId = frag.getInt(pos + AdhocPacketCodec.OFFSET_MESSAGE_ID);
+		int len = frag.remaining() - AdhocPacketCodec.FRAGMENT_HEADER_SIZE;
+
+		// every fragment but the last is full, and the whole must fit
+		if (index >= count || len > PAYLOAD
+				|| (index < count - 1 && len != PAYLOAD)
+				|| (count - 1) * PAYLOAD + len > Globals.ADHOC_MAX_MESSAGE_SIZE) {
+			malformed++;
+			return null;
+		}
+
+		Slot s = slot(src, msgId, count, now);
+		if (s.have.get(index)) {
+			return null; // duplicate
+		}
+		frag.position(pos + AdhocPacketCodec.FRAGMENT_HEADER_SIZE);
+		frag.get(s.data, index * PAYLOAD, len);
+		frag.position(pos);
+		s.have.set(index);
+		s.received++;
+		if (index == count - 1) {
+			s.length = index * PAYLOAD + len;
+		}
+
+		if (s.received < s.count) {
+			return null;
+		}
+		s.busy = false;
+		completed++;
+		return ByteBuffer.wrap(s.data, 0, s.length);
+	}
+
+	public String stats() {
+		return String
+				.format("reassembled %d adhoc messages, %d timed out, %d evicted, %d bad fragments",
+						completed, expired, evicted, malformed);
+	}
+
+	/** The slot for a message, starting one if it is new */
+	private Slot slot(long src, int msgId, int count, long now) {
+		Slot free = null, oldest = null;
+		for (Slot s : slots) {
+			if (s.busy && now - s.started > Globals.ADHOC_REASSEMBLY_TIMEOUT) {
+				s.busy = false;
+				expired++;
+			}
+			if (s.busy) {
+				if (s.src == src && s.msgId == msgId && s.count == count) {
+					return s;
+				}
+				if (oldest == null || s.started < oldest.started) {
+					oldest = s;
+				}
+			} else if (free == null) {
+				free = s;
+			}
+		}
+		if (free == null) {
+			free = oldest;
+			evicted++;
+		}
+
+		free.busy = true;
+		free.src = src;
+		free.msgId = msgId;
+		free.count = count;
+		free.received = 0;
+		free.length = 0;
+		free.have.clear();
+		free.started = now;
+		return free;
+	}
+}
@@ -0,0 +1,152 @@
+package edu.mit.csail.jasongao.roadrunner;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Long-lived sender for outbound adhoc packets. Any thread may enqueue; the
+ * queues are lock-free and the sender parks while both are empty. Token
+ * traffic goes in its own queue and is always drained before
+ * announcements, so a burst of TOKEN_SENDs is never stuck behind beacons.
+ * A packet that encodes to more than ADHOC_MAX_PACKET_SIZE goes out as
+ * fragments, see AdhocPacketCodec; everything else is one datagram as before.
+ */
+public class AdhocSenderThread extends Thread {
+	private static final String TAG = "AdhocSenderThread";
+
+	private final RoadRunnerService rrs;
+	private final AdhocPacketThread aat;
+
+	private final Queue<AdhocPacket> urgent = new ConcurrentLinkedQueue<AdhocPacket>();
+	private final Queue<AdhocPacket> announces = new ConcurrentLinkedQueue<AdhocPacket>();
+	private final AtomicInteger depth = new AtomicInteger(0);
+	private volatile boolean running = true;
+
+	/** Reused encode and fragment buffers */
+	private final ByteBuffer buf = ByteBuffer
+			.allocateDirect(Globals.ADHOC_MAX_MESSAGE_SIZE);
+	private final ByteBuffer fragment = ByteBuffer
+			.allocateDirect(Globals.ADHOC_MAX_PACKET_SIZE);
+	private int messageId = 0;
+
+	/** Send statistics, written by the sender thread only */
+	private volatile long sent = 0;
+	private volatile long fragmented = 0;
+	private volatile int maxDepth = 0;
+	private volatile long avgLatency = 0; // ms, EWMA over 1/8
+	private volatile long maxLatency = 0; // ms
+
+	public AdhocSenderThread(RoadRunnerService rrs_, AdhocPacketThread aat_) {
+		super(TAG);
+		this.rrs = rrs_;
+		this.aat = aat_;
+	}
+
+	/** Queue a packet for sending. Safe to call from any thread. */
+	public void enqueue(AdhocPacket p) {
+		p.queuedAt = System.currentTimeMillis();
+		if (p.type == AdhocPacket.ANNOUNCE) {
+			announces.offer(p);
+		} else {
+			urgent.offer(p);
+		}
+		int d = depth.incrementAndGet();
+		if (d > maxDepth) {
+			maxDepth = d; // racy, only a statistic
+		}
+		LockSupport.unpark(this);
+	}
+
+	/** Packets waiting to be sent */
+	public int queueDepth() {
+		return depth.get();
+	}
+
+	public String stats() {
+		return String
+				.format("sent %d adhoc packets (%d fragmented), queue depth %d (max %d), send latency avg %d ms (max %d ms)",
+						sent, fragmented, depth.get(), maxDepth, avgLatency,
+						maxLatency);
+	}
+
+	public void close() {
+		running = false;
+		LockSupport.unpark(this);
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			AdhocPacket p = urgent.poll();
+			if (p == null) {
+				p = announces.poll();
+			}
+			if (p == null) {
+				LockSupport.park(this);
+				continue;
+			}
+			depth.decrementAndGet();
+			send(p);
+		}
+		rrs.log("AdhocSenderThread exiting.");
+	}
+
+	private void send(AdhocPacket p) {
+		try {
+			ByteBuffer data;
+			if (Globals.ADHOC_BINARY_CODEC) {
+				buf.clear();
+				AdhocPacketCodec.encode(p, buf);
+				buf.flip();
+				data = buf;
+			} else {
+				data = ByteBuffer.wrap(AdhocPacketCodec.toBytes(p));
+			}
+			int length = data.remaining();
+			if (length <= Globals.ADHOC_MAX_PACKET_SIZE) {
+				aat.sendData(data);
+			} else {
+				sendFragments(p, data);
+			}
+
+			long latency = System.currentTimeMillis() - p.queuedAt;
+			avgLatency += (latency - avgLatency) / 8;
+			maxLatency = Math.max(maxLatency, latency);
+			sent++;
+
+			rrs.log_nodisplay(String.format(
+					"sent %d byte adhoc packet type %d after %d ms queued",
+					length, p.type, latency));
+		} catch (Exception e) {
+			rrs.log("error sending adhoc packet:" + e.getMessage());
+		}
+	}
+
+	/** Send an encoded packet too large for one datagram as fragments */
+	private void sendFragments(AdhocPacket p, ByteBuffer data)
+			throws IOException {
+		int count = AdhocPacketCodec.fragmentCount(data.remaining());
+		if (count > AdhocPacketCodec.MAX_FRAGMENTS) {
+			throw new IOException(String.format(
+					"%d byte adhoc packet too large", data.remaining()));
+		}
+		int id = messageId++;
+		int end = data.limit();
+		for (int i = 0; i < count; i++) {
+			fragment.clear();
+			AdhocPacketCodec.putFragmentHeader(fragment, p.src, p.dst, id, i,
+					count);
+			data.limit(Math.min(end, data.position()
+					+ AdhocPacketCodec.FRAGMENT_PAYLOAD));
+			fragment.put(data);
+			data.limit(end);
+			fragment.flip();
+			aat.sendData(fragment);
+		}
+		fragmented++;
+	}
+}
@@ -1,11 +1,13 @@
 package edu.mit.csail.jasongao.roadrunner;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
-import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.List;
 
 import android.telephony.TelephonyManager;
 
@@ -27,6 +29,10 @@ public class AdhocServerConnection implements Runnable {
 				this.mSocket.getRemoteSocketAddress(), line));
 	}
 
+	/**
+	 * Serve one request, or any number after the CloudConnectionPool
+	 * preamble, each response then ending with an empty line.
+	 */
 	@Override
 	public void run() {
 		Socket clientSocket = mSocket;
@@ -34,6 +40,8 @@ public class AdhocServerConnection implements Runnable {
 		log("Connected.");
 
 		try {
+			// don't hold a thread for a client that went away
+			clientSocket.setSoTimeout(Globals.ADHOC_SERVER_IDLE_TIMEOUT);
 			BufferedReader clientReader = new BufferedReader(
 					new InputStreamReader(clientSocket.getInputStream()));
 			Writer clientWriter = new OutputStreamWriter(
@@ -41,108 +49,20 @@ public class AdhocServerConnection implements Runnable {
 
 			// read request from socket
 			String request = clientReader.readLine();
-			// log("Received request: " + request);
-			String[] parts = request.split(" ");
-			if (parts.length != 3) {
-				log(String.format(
-						"Improperly formatted request line from %s, exiting.",
-						clientSocket.getRemoteSocketAddress()));
-				mSocket.close();
+			if (!CloudConnectionPool.PREAMBLE.equals(request)) {
+				handle(request, clientWriter, false);
 				return;
 			}
 
-			String method = parts[0];
-			long otherId = Long.parseLong(parts[1]);
-			String regionId = parts[2];
-			String response;
-
-			if ("GET".equals(method)) {
-				// respond with token from offered tokens store if possible
-				ResRequest offer = RoadRunnerService.queuePoll(rrs.offers,
-						regionId);
-				if (offer != null) {
-					log(String
-							.format("Responding to GET request from %d with an offered reservation.",
-									otherId));
-					response = String.format("GET 200 OK\r\n%s\r\n%s\r\n\r\n",
-							offer.tokenString, offer.signature);
-					clientWriter.write(response);
-					clientWriter.flush();
-
-					rrs.updateDisplay();
-				}
-				// relay request if cellular link is not dormant
-				else if (Globals.RELAY_ENABLED
-						&& rrs.tm.getDataActivity() != TelephonyManager.DATA_ACTIVITY_DORMANT) {
-					log(String.format(
-							"Relaying vehicle %d GET request to cloud.",
-							otherId));
-					Socket cloudSocket = new Socket();
-					try {
-						cloudSocket.connect(new InetSocketAddress(
-								Globals.CLOUD_HOST, Globals.CLOUD_PORT),
-								Globals.CLOUD_SOCKET_TIMEOUT);
-
-						BufferedReader cloudReader = new BufferedReader(
-								new InputStreamReader(
-										cloudSocket.getInputStream()));
-						Writer cloudWriter = new OutputStreamWriter(
-								cloudSocket.getOutputStream());
-
-						// Send the original GET request
-						String line = String.format("GET %d %s\r\n", otherId,
-								regionId);
-						cloudWriter.write(line);
-						cloudWriter.flush();
-
-						// relay response back to client
-						String relayResponse;
-						relayResponse = cloudReader.readLine();
-
-						log(String.format("Relaying cloud response to %d: %s",
-								otherId, relayResponse));
-
-						if ("GET 200 OK".equals(relayResponse)) {
-							clientWriter.write(relayResponse + "\r\n");
-							clientWriter.write(cloudReader.readLine() + "\r\n");
-							clientWriter.write(cloudReader.readLine() + "\r\n");
-							clientWriter.write(cloudReader.readLine() + "\r\n");
-							clientWriter.flush();
-						} else { // not OK
-							clientWriter.write(relayResponse + "\r\n");
-							clientWriter.flush();
-						}
-
-						rrs.myHandler.post(rrs.updateLastDataActivity);
-
-					} catch (Exception e) {
-						log("Unexpected I/O error or natural shutdown: "
-								+ e.toString());
-					} finally {
-						try {
-							cloudSocket.shutdownOutput();
-						} catch (Exception e) {
-						}
-
-						try {
-							cloudSocket.shutdownInput();
-						} catch (Exception e) {
-						}
-
-						try {
-							cloudSocket.close();
-						} catch (Exception e) {
-						}
-					}
-				}
-				// otherwise respond failure
-				else {
-					log("Responding to request, no token locally available.");
-					response = String.format("GET 404 ERROR\r\n");
-					clientWriter.write(response);
-					clientWriter.flush();
+			clientWriter.write(CloudConnectionPool.PREAMBLE_OK + "\r\n");
+			clientWriter.flush();
+			while ((request = clientReader.readLine()) != null) {
+				if (!handle(request, clientWriter, true)) {
+					break;
 				}
 			}
+		} catch (SocketTimeoutException e) {
+			log("Idle, closing.");
 		} catch (Exception e) {
 			e.printStackTrace();
 		} finally {
@@ -152,4 +72,83 @@ public class AdhocServerConnection implements Runnable {
 			}
 		}
 	}
-}
\ No newline at end of file
+
+	/** Respond to one request line. Returns false if it was malformed. */
+	private boolean handle(String request, Writer clientWriter, boolean framed)
+			throws IOException {
+		// log("Received request: " + request);
+		String[] parts = (request != null) ? request.split(" ") : new String[0];
+		if (parts.length != 3) {
+			log(String.format(
+					"Improperly formatted request line from %s, exiting.",
+					mSocket.getRemoteSocketAddress()));
+			return false;
+		}
+
+		String method = parts[0];
+		long otherId = Long.parseLong(parts[1]);
+		String regionId = parts[2];
+		String response;
+
+		if ("GET".equals(method)) {
+			// respond with token from offered tokens store if possible
+			ResRequest offer = RoadRunnerService.queuePoll(rrs.offers,
+					regionId);
+			if (offer != null) {
+				log(String
+						.format("Responding to GET request from %d with an offered reservation.",
+								otherId));
+				response = String.format("GET 200 OK\r\n%s\r\n%s\r\n\r\n",
+						offer.tokenString, offer.signature);
+				clientWriter.write(response);
+				clientWriter.flush();
+
+				rrs.updateDisplay();
+			}
+			// relay request if cellular link is not dormant
+			else if (Globals.RELAY_ENABLED
+					&& rrs.tm.getDataActivity() != TelephonyManager.DATA_ACTIVITY_DORMANT) {
+				log(String.format("Relaying vehicle %d GET request to cloud.",
+						otherId));
+				try {
+					// Send the original GET request
+					List<String> relayResponse = rrs.cloudPool.exchange(
+							Globals.CLOUD_HOST,
+							String.format("GET %d %s", otherId, regionId));
+
+					log(String.format("Relaying cloud response to %d: %s",
+							otherId, relayResponse.get(0)));
+
+					// relay response back to client
+					for (String line : relayResponse) {
+						clientWriter.write(line + "\r\n");
+					}
+					clientWriter.write("\r\n");
+					clientWriter.flush();
+
+					rrs.myHandler.post(rrs.updateLastDataActivity);
+
+				} catch (IOException e) {
+					log("Unexpected I/O error or natural shutdown: "
+							+ e.toString());
+					return false;
+				}
+			}
+			// otherwise respond failure
+			else {
+				log("Responding to request, no token locally available.");
+				response = String.format("GET 404 ERROR\r\n");
+				clientWriter.write(response);
+				if (framed) {
+					clientWriter.write("\r\n");
+				}
+				clientWriter.flush();
+			}
+		} else if (framed) {
+			// the client is waiting on a response
+			clientWriter.write(method + " 501 ERROR\r\n\r\n");
+			clientWriter.flush();
+		}
+		return true;
+	}
+}
@@ -0,0 +1,125 @@
+package edu.mit.csail.jasongao.roadrunner;
+
+import java.util.Random;
+
+import android.location.Location;
+import android.os.Handler;
+
+/**
+ * Adaptive timer for adhoc ANNOUNCEs, in the style of Trickle. The interval
+ * drops to ADHOC_ANNOUNCE_MIN_PERIOD whenever what we announce changes or a
+ * new neighbour shows up, then doubles on every beacon up to a ceiling. The
+ * ceiling is ADHOC_ANNOUNCE_PERIOD while we have offers or pending GETs,
+ * stretches with the number of neighbours in dense traffic, and is cut
+ * when we move fast enough to outrun the radio. Beacons that would repeat
+ * an unchanged, empty state are suppressed except for a keepalive every
+ * ADHOC_ANNOUNCE_MAX_PERIOD. Runs on the service's handler thread.
+ */
+public class AnnounceScheduler {
+	private final RoadRunnerService rrs;
+	private final Handler handler;
+	private final Random random = new Random();
+
+	private long interval = Globals.ADHOC_ANNOUNCE_MIN_PERIOD;
+	private long lastSent;
+	private int lastState;
+	private int sentCount, suppressedCount;
+	private boolean running = false;
+
+	public AnnounceScheduler(RoadRunnerService rrs_, Handler handler_) {
+		this.rrs = rrs_;
+		this.handler = handler_;
+	}
+
+	public void start() {
+		interval = Globals.ADHOC_ANNOUNCE_MIN_PERIOD;
+		lastSent = 0;
+		running = true;
+		handler.post(tick);
+	}
+
+	public void stop() {
+		running = false;
+		handler.removeCallbacks(tick);
+	}
+
+	/** Announce soon, e.g. because a new neighbour appeared */
+	public void reset() {
+		if (running && interval > Globals.ADHOC_ANNOUNCE_MIN_PERIOD) {
+			interval = Globals.ADHOC_ANNOUNCE_MIN_PERIOD;
+			schedule();
+		}
+	}
+
+	/** Reset if our announced state changed since the last beacon */
+	public void check() {
+		if (rrs.announceState() != lastState) {
+			reset();
+		}
+	}
+
+	/** Record a beacon sent outside the timer */
+	public void sent(long now) {
+		lastSent = now;
+		lastState = rrs.announceState();
+		sentCount++;
+	}
+
+	public String stats() {
+		return String.format(
+				"Announce scheduler: %d sent, %d suppressed, interval %d ms",
+				sentCount, suppressedCount, interval);
+	}
+
+	private void schedule() {
+		handler.removeCallbacks(tick);
+		// random point in the second half of the interval, so vehicles
+		// that reset together don't stay in lockstep
+		long half = interval / 2;
+		handler.postDelayed(tick, half + (long) (random.nextDouble() * half));
+	}
+
+	/** Longest interval the current conditions allow */
+	private long ceiling() {
+		if (!rrs.hasAdhocState()) {
+			return Globals.ADHOC_ANNOUNCE_MAX_PERIOD;
+		}
+		long ceiling = Globals.ADHOC_ANNOUNCE_PERIOD;
+
+		// dense: share the channel among the neighbours
+		int n = rrs.neighbors.size();
+		if (n > Globals.ADHOC_ANNOUNCE_DENSE_NEIGHBORS) {
+			ceiling = ceiling * n / Globals.ADHOC_ANNOUNCE_DENSE_NEIGHBORS;
+		}
+
+		// fast: beacon at least twice while crossing the radio range
+		Location loc = rrs.mLoc;
+		if (loc != null && loc.hasSpeed() && loc.getSpeed() > 0) {
+			long crossing = (long) (1000 * rrs.linkRange() / loc.getSpeed());
+			ceiling = Math.min(ceiling, crossing / 2);
+		}
+
+		return Math.max(Globals.ADHOC_ANNOUNCE_MIN_PERIOD,
+				Math.min(Globals.ADHOC_ANNOUNCE_MAX_PERIOD, ceiling));
+	}
+
+	private final Runnable tick = new Runnable() {
+		public void run() {
+			long now = System.currentTimeMillis();
+			boolean changed = rrs.announceState() != lastState;
+			if (changed) {
+				interval = Globals.ADHOC_ANNOUNCE_MIN_PERIOD;
+			}
+
+			if (changed || rrs.hasAdhocState()
+					|| now - lastSent >= Globals.ADHOC_ANNOUNCE_MAX_PERIOD) {
+				rrs.adhocAnnounce(false);
+			} else {
+				suppressedCount++;
+			}
+
+			interval = Math.min(ceiling(), interval * 2);
+			schedule();
+		}
+	};
+}
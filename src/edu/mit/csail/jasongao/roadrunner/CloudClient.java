@@ -0,0 +1,453 @@
+package edu.mit.csail.jasongao.roadrunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking client for the cloud line protocol, run by one Selector
+ * thread. Any thread may send; each request returns a CloudFuture at once.
+ * Every host gets one persistent, framed connection (see
+ * CloudConnectionPool) that carries any number of pipelined requests, so
+ * how many are in flight is not bounded by a thread pool. Responses come
+ * back in order. A request not answered by its deadline fails, and so does
+ * everything else in flight on its connection, which is closed, since
+ * their responses would queue behind it. Requests not yet written are
+ * moved to a new connection. Nothing is written until the server has
+ * answered the preamble, so requests to a host that doesn't frame responses
+ * fail unsent, with UnframedException, and are left to the blocking path.
+ */
+public class CloudClient extends Thread {
+	private static final String TAG = "CloudClient";
+	private static final int BUFFER_SIZE = 4096;
+
+	/** The host only speaks one request per connection */
+	public static class UnframedException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		UnframedException(String host) {
+			super(host + " doesn't frame responses");
+		}
+	}
+
+	private final RoadRunnerService rrs;
+	private final Selector selector;
+	private final Queue<CloudFuture> submitted = new ConcurrentLinkedQueue<CloudFuture>();
+	private volatile boolean running = true;
+
+	/** Connections by host, selector thread only */
+	private final Map<String, Link> links = new HashMap<String, Link>();
+
+	private final Set<String> unframedHosts = Collections
+			.synchronizedSet(new HashSet<String>());
+
+	/** Statistics, written by the selector thread only */
+	private volatile int sent, completed, timedOut, failed;
+
+	public CloudClient(RoadRunnerService rrs_) throws IOException {
+		super(TAG);
+		this.rrs = rrs_;
+		this.selector = Selector.open();
+	}
+
+	/** False once host turned out not to frame responses */
+	public boolean supports(String host) {
+		return !unframedHosts.contains(host);
+	}
+
+	/**
+	 * Send a request line to host, expecting count framed responses within
+	 * timeout ms. Safe to call from any thread.
+	 */
+	public CloudFuture send(String host, String request, int count,
+			long timeout) {
+		CloudFuture f = new CloudFuture(host, request, count,
+				System.currentTimeMillis() + timeout);
+		if (!running) {
+			f.complete(null, new IOException("cloud client closed"));
+			return f;
+		}
+		submitted.offer(f);
+		selector.wakeup();
+		return f;
+	}
+
+	public String stats() {
+		return String
+				.format("Cloud client: %d sent, %d completed, %d timed out, %d failed",
+						sent, completed, timedOut, failed);
+	}
+
+	public void close() {
+		running = false;
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		long nextDeadline = 0;
+		try {
+			while (running) {
+				long wait = 0; // forever
+				if (nextDeadline > 0) {
+					wait = Math.max(1, nextDeadline
+							- System.currentTimeMillis());
+				}
+				if (submitted.isEmpty()) {
+					selector.select(wait);
+				} else {
+					selector.selectNow(); // requeued by a failed connection
+				}
+
+				for (CloudFuture f = submitted.poll(); f != null; f = submitted
+						.poll()) {
+					if (f.isDone()) {
+						continue;
+					}
+					Link link = null;
+					try {
+						link = link(f.host);
+						link.queue(f);
+					} catch (IOException e) {
+						if (link != null) {
+							link.fail(e);
+						} else if (f.complete(null, e)) {
+							failed++;
+						}
+					}
+				}
+
+				for (Iterator<SelectionKey> it = selector.selectedKeys()
+						.iterator(); it.hasNext();) {
+					SelectionKey key = it.next();
+					it.remove();
+					Link link = (Link) key.attachment();
+					try {
+						if (key.isValid() && key.isConnectable()) {
+							link.channel.finishConnect();
+						}
+						if (key.isValid() && key.isReadable()) {
+							link.read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							link.write();
+						}
+						if (key.isValid()) {
+							link.updateInterest();
+						}
+					} catch (IOException e) {
+						link.fail(e);
+					}
+				}
+
+				nextDeadline = expire(System.currentTimeMillis());
+			}
+		} catch (IOException e) {
+			rrs.log("CloudClient selector failed: " + e.getMessage());
+		} catch (ClosedSelectorException e) {
+		}
+
+		running = false;
+		IOException closed = new IOException("cloud client closed");
+		for (Link link : new ArrayList<Link>(links.values())) {
+			link.fail(closed);
+		}
+		for (CloudFuture f = submitted.poll(); f != null; f = submitted.poll()) {
+			f.complete(null, closed);
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+		}
+		rrs.log("CloudClient exiting.");
+	}
+
+	private Link link(String host) throws IOException {
+		Link link = links.get(host);
+		if (link == null) {
+			link = new Link(host);
+			links.put(host, link);
+		}
+		return link;
+	}
+
+	/**
+	 * Fail requests past their deadline and close idle connections. Returns
+	 * the next deadline, or 0 if nothing is waiting.
+	 */
+	private long expire(long now) {
+		long next = 0;
+		for (Link link : new ArrayList<Link>(links.values())) {
+			long d = link.expire(now);
+			if (d > 0 && (next == 0 || d < next)) {
+				next = d;
+			}
+		}
+		return next;
+	}
+
+	/** One connection to a host */
+	private class Link {
+		final String host;
+		final SocketChannel channel;
+		final SelectionKey key;
+		final long created = System.currentTimeMillis();
+		boolean negotiated = false;
+		long lastActive = created;
+
+		final ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+		final ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+		final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+		final LinkedList<CloudFuture> unsent = new LinkedList<CloudFuture>();
+		final LinkedList<CloudFuture> inFlight = new LinkedList<CloudFuture>();
+		List<String> response = new ArrayList<String>();
+		List<List<String>> responses = new ArrayList<List<String>>();
+
+		Link(String host_) throws IOException {
+			this.host = host_;
+			this.channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			channel.connect(new InetSocketAddress(host, Globals.CLOUD_PORT));
+			this.key = channel.register(selector, SelectionKey.OP_CONNECT,
+					this);
+			// requests wait for the answer, an older server may act on them
+			out.put(bytes(CloudConnectionPool.PREAMBLE));
+		}
+
+		void queue(CloudFuture f) throws IOException {
+			unsent.add(f);
+			if (channel.isConnected()) {
+				write();
+				updateInterest();
+			}
+		}
+
+		/** Copy waiting requests into the output buffer and write it */
+		void write() throws IOException {
+			while (negotiated && !unsent.isEmpty()) {
+				CloudFuture f = unsent.getFirst();
+				if (f.isDone()) {
+					unsent.removeFirst(); // cancelled or expired
+					continue;
+				}
+				byte[] b = bytes(f.request);
+				if (b.length > out.remaining()) {
+					if (out.position() > 0) {
+						break; // after what's already buffered
+					}
+					unsent.removeFirst();
+					f.complete(null, new IOException("request too long"));
+					failed++;
+					continue;
+				}
+				out.put(b);
+				unsent.removeFirst();
+				inFlight.add(f);
+				sent++;
+			}
+
+			out.flip();
+			channel.write(out);
+			out.compact();
+			lastActive = System.currentTimeMillis();
+		}
+
+		void updateInterest() {
+			int ops = SelectionKey.OP_READ;
+			if (!channel.isConnected()) {
+				ops = SelectionKey.OP_CONNECT;
+			} else if (out.position() > 0 || (negotiated && !unsent.isEmpty())) {
+				ops |= SelectionKey.OP_WRITE;
+			}
+			key.interestOps(ops);
+		}
+
+		void read() throws IOException {
+			in.clear();
+			if (channel.read(in) < 0) {
+				if (!negotiated) {
+					unframed(); // an older server hangs up on the preamble
+					return;
+				}
+				throw new IOException("connection closed by " + host);
+			}
+			in.flip();
+			while (in.hasRemaining()) {
+				byte b = in.get();
+				if (b != '\n') {
+					line.write(b);
+					continue;
+				}
+				String s = line.toString("UTF-8");
+				line.reset();
+				if (s.endsWith("\r")) {
+					s = s.substring(0, s.length() - 1);
+				}
+				onLine(s);
+				if (!key.isValid()) {
+					return; // failed
+				}
+			}
+			lastActive = System.currentTimeMillis();
+		}
+
+		private void onLine(String s) throws IOException {
+			if (!negotiated) {
+				if (CloudConnectionPool.PREAMBLE_OK.equals(s)) {
+					negotiated = true;
+					write(); // what queued up meanwhile
+				} else {
+					unframed();
+				}
+				return;
+			}
+
+			if (s.length() > 0) {
+				response.add(s);
+				return;
+			}
+
+			// an empty line ends a response, which has at least a status
+			CloudFuture f = inFlight.peekFirst();
+			if (f == null || response.isEmpty()) {
+				throw new IOException("unexpected response from " + host);
+			}
+			responses.add(response);
+			response = new ArrayList<String>();
+			if (responses.size() == f.count) {
+				inFlight.removeFirst();
+				if (f.complete(responses, null)) {
+					completed++;
+				}
+				responses = new ArrayList<List<String>>();
+			}
+		}
+
+		private void unframed() {
+			unframedHosts.add(host);
+			rrs.log(String.format(
+					"%s doesn't frame responses, using blocking requests", host));
+			fail(new UnframedException(host));
+		}
+
+		/** Expire requests and idle connections, returning the next deadline */
+		long expire(long now) {
+			long next = 0;
+			if (!negotiated && channel.isConnected()) {
+				// like CloudConnectionPool.open, a server that sits on the
+				// preamble is taken for an older one
+				long due = created + Globals.CLOUD_SOCKET_TIMEOUT;
+				if (due <= now) {
+					unframed();
+					return 0;
+				}
+				next = due;
+			}
+			for (CloudFuture f : inFlight) {
+				if (f.deadline <= now) {
+					// even if cancelled, responses behind it are held up
+					if (!f.isDone()) {
+						timedOut++;
+					}
+					fail(new SocketTimeoutException("no response from "
+							+ host));
+					return 0;
+				}
+				if (next == 0 || f.deadline < next) {
+					next = f.deadline;
+				}
+			}
+			for (Iterator<CloudFuture> it = unsent.iterator(); it.hasNext();) {
+				CloudFuture f = it.next();
+				if (f.deadline <= now) {
+					if (f.complete(null, new SocketTimeoutException(
+							"no connection to " + host))) {
+						timedOut++;
+					}
+					it.remove();
+				} else if (next == 0 || f.deadline < next) {
+					next = f.deadline;
+				}
+			}
+			if (inFlight.isEmpty() && unsent.isEmpty()) {
+				if (now - lastActive > Globals.CLOUD_POOL_IDLE_TIMEOUT) {
+					close();
+				} else {
+					next = lastActive + Globals.CLOUD_POOL_IDLE_TIMEOUT + 1;
+				}
+			}
+			return next;
+		}
+
+		/**
+		 * Close, failing whatever is in flight. Requests not yet sent go to
+		 * a new connection if this one had been working, e.g. the server
+		 * closed it while idle.
+		 */
+		void fail(IOException e) {
+			close();
+			for (CloudFuture f : inFlight) {
+				// the head keeps what it got of a batch: the server did those
+				List<List<String>> partial = null;
+				if (f == inFlight.getFirst() && !responses.isEmpty()) {
+					partial = responses;
+				}
+				if (f.complete(partial, e)) {
+					failed++;
+				}
+			}
+			inFlight.clear();
+			response = new ArrayList<String>();
+			responses = new ArrayList<List<String>>();
+			for (CloudFuture f : unsent) {
+				if (!negotiated || !running) {
+					if (f.complete(null, e)) {
+						failed++;
+					}
+				} else {
+					submitted.offer(f);
+				}
+			}
+			unsent.clear();
+		}
+
+		void close() {
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+			if (links.get(host) == this) {
+				links.remove(host);
+			}
+		}
+	}
+
+	private static byte[] bytes(String line) {
+		try {
+			return (line + "\r\n").getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
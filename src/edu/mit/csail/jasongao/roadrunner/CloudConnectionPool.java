@@ -0,0 +1,444 @@
+package edu.mit.csail.jasongao.roadrunner;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keep-alive connections to the cloud server, or to a peer's
+ * AdhocServerThread, for ResRequestTask. A new connection opens with the
+ * PREAMBLE line; a server that answers PREAMBLE_OK frames every response by
+ * ending it with an empty line and keeps the connection open for more
+ * requests. Servers that don't answer it are remembered and get the old
+ * one-request-per-connection protocol. Idle connections are kept per host,
+ * up to CLOUD_POOL_MAX_IDLE, and are closed once idle for
+ * CLOUD_POOL_IDLE_TIMEOUT or found unhealthy. A request whose write to a
+ * reused connection fails is sent once more on a new one; nothing is
+ * resent once written, as the server may have acted on it. Safe to use
+ * from any thread.
+ *
+ * A framed cloud server also takes batches, "MGET id r1 r2 ..." and "MPUT
+ * id r1 r2 ...", and streams back one framed GET or PUT response per
+ * region, in order. Peers' AdhocServerThreads don't, nor do older servers,
+ * which get single requests.
+ */
+public class CloudConnectionPool {
+	static final String PREAMBLE = "RR/2";
+	static final String PREAMBLE_OK = "RR/2 OK";
+
+	/** One connection, used by one thread at a time */
+	public static class Connection {
+		final String host;
+		final Socket socket;
+		final BufferedReader reader;
+		final Writer writer;
+		boolean framed = false;
+		boolean reused = false; // taken from the pool
+		long lastUsed;
+
+		Connection(String host_) throws IOException {
+			this.host = host_;
+			this.socket = new Socket();
+			socket.connect(new InetSocketAddress(host, Globals.CLOUD_PORT),
+					Globals.CLOUD_SOCKET_TIMEOUT);
+			socket.setSoTimeout(Globals.CLOUD_READ_TIMEOUT);
+			socket.setTcpNoDelay(true);
+			socket.setKeepAlive(true);
+			this.reader = new BufferedReader(new InputStreamReader(
+					socket.getInputStream()));
+			this.writer = new OutputStreamWriter(socket.getOutputStream());
+			this.lastUsed = System.currentTimeMillis();
+		}
+
+		/**
+		 * Send one request line and read count responses to it, each as a
+		 * list of lines.
+		 */
+		public List<List<String>> exchange(String request, int count)
+				throws IOException {
+			write(request);
+			List<List<String>> responses = new ArrayList<List<String>>(count);
+			read(count, responses);
+			return responses;
+		}
+
+		void write(String request) throws IOException {
+			writer.write(request + "\r\n");
+			writer.flush();
+		}
+
+		/**
+		 * Read responses into responses until it holds count. Those read
+		 * before a failure are kept.
+		 */
+		void read(int count, List<List<String>> responses)
+				throws IOException {
+			while (responses.size() < count) {
+				responses.add(readResponse());
+			}
+
+			lastUsed = System.currentTimeMillis();
+		}
+
+		/**
+		 * Read one response. Unframed, that is the status line plus the token
+		 * and signature of a successful GET.
+		 */
+		private List<String> readResponse() throws IOException {
+			List<String> lines = new ArrayList<String>();
+			String status = readLine();
+			lines.add(status);
+			if (framed) {
+				for (String line = readLine(); line.length() > 0; line = readLine()) {
+					lines.add(line);
+				}
+			} else if ("GET 200 OK".equals(status)) {
+				lines.add(readLine());
+				lines.add(readLine());
+			}
+			return lines;
+		}
+
+		private String readLine() throws IOException {
+			String line = reader.readLine();
+			if (line == null) {
+				throw new EOFException("connection closed by " + host);
+			}
+			return line;
+		}
+
+		/** Still usable for another request */
+		boolean isHealthy(long now) {
+			try {
+				// unread bytes mean we lost track of the framing
+				if (socket.isClosed() || socket.isInputShutdown()
+						|| now - lastUsed >= Globals.CLOUD_POOL_IDLE_TIMEOUT
+						|| reader.ready()) {
+					return false;
+				}
+				// nothing buffered, so peek at the socket: a timeout means
+				// it is open and quiet, EOF that the server closed it
+				socket.setSoTimeout(1);
+				try {
+					socket.getInputStream().read();
+					return false;
+				} catch (SocketTimeoutException e) {
+					socket.setSoTimeout(Globals.CLOUD_READ_TIMEOUT);
+					return true;
+				}
+			} catch (IOException e) {
+				return false;
+			}
+		}
+
+		void close() {
+			try {
+				socket.shutdownOutput();
+			} catch (Exception e) {
+			}
+
+			try {
+				socket.shutdownInput();
+			} catch (Exception e) {
+			}
+
+			try {
+				socket.close();
+			} catch (Exception e) {
+			}
+		}
+	}
+
+	private final RoadRunnerService rrs;
+
+	/** Idle connections by host, most recently used first */
+	private final Map<String, LinkedList<Connection>> idle = new HashMap<String, LinkedList<Connection>>();
+
+	/** Hosts known to frame responses */
+	private final Set<String> framedHosts = new HashSet<String>();
+
+	/** Hosts that only speak one request per connection */
+	private final Set<String> unframedHosts = new HashSet<String>();
+
+	/** Statistics */
+	private int opened, reused, discarded, retried;
+
+	/** Whether reaper is posted; it is while any connection is idle */
+	private boolean reaping = false;
+	private final Runnable reaper = new Runnable() {
+		public void run() {
+			reap(System.currentTimeMillis());
+		}
+	};
+
+	public CloudConnectionPool(RoadRunnerService rrs_) {
+		this.rrs = rrs_;
+	}
+
+	/**
+	 * Send a request to host on a pooled connection and return its response
+	 * lines.
+	 */
+	public List<String> exchange(String host, String request)
+			throws IOException {
+		List<List<String>> responses = new ArrayList<List<String>>(1);
+		send(host, request, 1, responses);
+		return responses.get(0);
+	}
+
+	/**
+	 * Send a batch of GETs or PUTs (method "GET" or "PUT") for several
+	 * regions to host and return the response to each, in order. A region
+	 * that got no response has null; the server has acted on every one that
+	 * did, even if a later one failed.
+	 */
+	public List<List<String>> exchangeBatch(String host, String method,
+			long id, List<String> regionIds) {
+		List<List<String>> responses = new ArrayList<List<String>>();
+		boolean batched = false;
+		try {
+			if (regionIds.size() > 1 && isFramed(host)) {
+				batched = true;
+				send(host, requestLine(method, id, regionIds),
+						regionIds.size(), responses);
+			}
+		} catch (IOException e) {
+			rrs.log(String.format("%s batch to %s failed after %d of %d: %s",
+					method, host, responses.size(), regionIds.size(), e));
+		}
+		if (!batched) {
+			for (String regionId : regionIds) {
+				try {
+					responses.add(exchange(host,
+							String.format("%s %d %s", method, id, regionId)));
+				} catch (IOException e) {
+					rrs.log(String.format("%s %s to %s failed: %s", method,
+							regionId, host, e));
+					responses.add(null);
+				}
+			}
+		}
+		while (responses.size() < regionIds.size()) {
+			responses.add(null);
+		}
+		return responses;
+	}
+
+	/** True if host is already known to frame responses and take batches */
+	public synchronized boolean isKnownFramed(String host) {
+		return framedHosts.contains(host);
+	}
+
+	/**
+	 * Request line for one region, or an MGET/MPUT batch for several, which
+	 * only framed servers take
+	 */
+	static String requestLine(String method, long id, List<String> regionIds) {
+		StringBuilder request = new StringBuilder();
+		if (regionIds.size() > 1) {
+			request.append('M');
+		}
+		request.append(method).append(' ').append(id);
+		for (String regionId : regionIds) {
+			request.append(' ').append(regionId);
+		}
+		return request.toString();
+	}
+
+	/**
+	 * Send a request on a pooled connection and read count responses into
+	 * responses, which keeps those read before a failure
+	 */
+	private void send(String host, String request, int count,
+			List<List<String>> responses) throws IOException {
+		Connection c = acquire(host);
+		try {
+			c.write(request);
+		} catch (IOException e) {
+			c.close();
+			if (!c.reused) {
+				throw e;
+			}
+			// the server dropped it while it sat idle; nothing was sent
+			synchronized (this) {
+				retried++;
+			}
+			c = open(host);
+			try {
+				c.write(request);
+			} catch (IOException e2) {
+				c.close();
+				throw e2;
+			}
+		}
+
+		try {
+			c.read(count, responses);
+			release(c);
+		} catch (IOException e) {
+			c.close();
+			throw e;
+		}
+	}
+
+	/** An idle healthy connection to host, or a new one */
+	public Connection acquire(String host) throws IOException {
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			LinkedList<Connection> conns = idle.get(host);
+			while (conns != null && !conns.isEmpty()) {
+				Connection c = conns.removeFirst();
+				if (c.isHealthy(now)) {
+					reused++;
+					c.reused = true;
+					return c;
+				}
+				discarded++;
+				c.close();
+			}
+		}
+		return open(host);
+	}
+
+	/** Return a connection after a successful exchange */
+	public void release(Connection c) {
+		if (!c.framed) {
+			c.close();
+			return;
+		}
+		synchronized (this) {
+			LinkedList<Connection> conns = idle.get(c.host);
+			if (conns == null) {
+				conns = new LinkedList<Connection>();
+				idle.put(c.host, conns);
+			}
+			if (conns.size() < Globals.CLOUD_POOL_MAX_IDLE) {
+				conns.addFirst(c);
+				if (!reaping) {
+					reaping = true;
+					rrs.myHandler.postDelayed(reaper,
+							Globals.CLOUD_POOL_IDLE_TIMEOUT + 1);
+				}
+				return;
+			}
+		}
+		c.close();
+	}
+
+	/**
+	 * Close connections idle for CLOUD_POOL_IDLE_TIMEOUT, so they don't tie
+	 * up a thread on the other end, and come back for the next one to go
+	 */
+	private void reap(long now) {
+		List<Connection> expired = new ArrayList<Connection>();
+		synchronized (this) {
+			long oldest = 0;
+			for (LinkedList<Connection> conns : idle.values()) {
+				for (Iterator<Connection> it = conns.iterator(); it.hasNext();) {
+					Connection c = it.next();
+					if (now - c.lastUsed >= Globals.CLOUD_POOL_IDLE_TIMEOUT) {
+						it.remove();
+						expired.add(c);
+						discarded++;
+					} else if (oldest == 0 || c.lastUsed < oldest) {
+						oldest = c.lastUsed;
+					}
+				}
+			}
+			reaping = oldest != 0;
+			if (reaping) {
+				rrs.myHandler.postDelayed(reaper, oldest
+						+ Globals.CLOUD_POOL_IDLE_TIMEOUT + 1 - now);
+			}
+		}
+		for (Connection c : expired) {
+			c.close();
+		}
+	}
+
+	/** Close every idle connection */
+	public synchronized void clear() {
+		rrs.myHandler.removeCallbacks(reaper);
+		reaping = false;
+		for (LinkedList<Connection> conns : idle.values()) {
+			for (Connection c : conns) {
+				c.close();
+			}
+		}
+		idle.clear();
+	}
+
+	public synchronized String stats() {
+		return String
+				.format("Cloud connections: %d opened, %d reused, %d discarded, %d retried",
+						opened, reused, discarded, retried);
+	}
+
+	/** True if host frames responses, connecting to find out if need be */
+	private boolean isFramed(String host) throws IOException {
+		synchronized (this) {
+			if (framedHosts.contains(host)) {
+				return true;
+			} else if (unframedHosts.contains(host)) {
+				return false;
+			}
+		}
+		Connection c = open(host);
+		release(c); // kept for the batch if framed
+		return c.framed;
+	}
+
+	/** Connect to host and negotiate framing */
+	private Connection open(String host) throws IOException {
+		boolean unframed;
+		synchronized (this) {
+			opened++;
+			unframed = unframedHosts.contains(host);
+		}
+
+		Connection c = new Connection(host);
+		if (unframed) {
+			return c;
+		}
+
+		try {
+			// don't wait long on a server that ignores the preamble
+			c.socket.setSoTimeout(Globals.CLOUD_SOCKET_TIMEOUT);
+			c.writer.write(PREAMBLE + "\r\n");
+			c.writer.flush();
+			if (PREAMBLE_OK.equals(c.reader.readLine())) {
+				c.socket.setSoTimeout(Globals.CLOUD_READ_TIMEOUT);
+				c.framed = true;
+				synchronized (this) {
+					framedHosts.add(host);
+				}
+				return c;
+			}
+		} catch (IOException e) {
+		}
+
+		// an older server took the preamble for a bad request
+		c.close();
+		rrs.log(String.format(
+				"%s doesn't keep connections open, one request each", host));
+		synchronized (this) {
+			unframedHosts.add(c.host);
+			opened++;
+		}
+		return new Connection(host);
+	}
+}
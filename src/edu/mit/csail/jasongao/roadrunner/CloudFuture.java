@@ -0,0 +1,155 @@
+package edu.mit.csail.jasongao.roadrunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import android.os.Handler;
+
+/**
+ * Result of a request sent through CloudClient: the lines of each response
+ * it asked for, or the error that ended it. Completes exactly once, on a
+ * response, an error, its deadline or cancel(). Listeners run on the
+ * Handler they were added with.
+ */
+public class CloudFuture implements Future<List<List<String>>> {
+
+	public interface Listener {
+		void completed(CloudFuture f);
+	}
+
+	final String host;
+	final String request;
+	final int count; // responses expected
+	final long deadline;
+
+	private boolean done = false;
+	private List<List<String>> responses;
+	private Exception error;
+	private final List<Listener> listeners = new ArrayList<Listener>();
+	private final List<Handler> handlers = new ArrayList<Handler>();
+
+	CloudFuture(String host_, String request_, int count_, long deadline_) {
+		this.host = host_;
+		this.request = request_;
+		this.count = count_;
+		this.deadline = deadline_;
+	}
+
+	/** Run l on h once complete, straight away if it already is */
+	public void addListener(Listener l, Handler h) {
+		synchronized (this) {
+			if (!done) {
+				listeners.add(l);
+				handlers.add(h);
+				return;
+			}
+		}
+		post(l, h);
+	}
+
+	/**
+	 * Complete with responses, or with an error if e is not null, along
+	 * with any responses received before it. Returns false if already
+	 * complete.
+	 */
+	boolean complete(List<List<String>> responses_, Exception e) {
+		List<Listener> ls;
+		List<Handler> hs;
+		synchronized (this) {
+			if (done) {
+				return false;
+			}
+			done = true;
+			responses = responses_;
+			error = e;
+			notifyAll();
+			ls = new ArrayList<Listener>(listeners);
+			hs = new ArrayList<Handler>(handlers);
+			listeners.clear();
+			handlers.clear();
+		}
+		for (int i = 0; i < ls.size(); i++) {
+			post(ls.get(i), hs.get(i));
+		}
+		return true;
+	}
+
+	private void post(final Listener l, Handler h) {
+		h.post(new Runnable() {
+			public void run() {
+				l.completed(CloudFuture.this);
+			}
+		});
+	}
+
+	/**
+	 * Responses, or null if not complete. If it failed, those received
+	 * first, possibly fewer than asked for, or null.
+	 */
+	public synchronized List<List<String>> responses() {
+		return responses;
+	}
+
+	/** Why it failed, or null */
+	public synchronized Exception error() {
+		return error;
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		// a response already on its way is read and dropped
+		return complete(null, new CancellationException("cancelled"));
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return error instanceof CancellationException;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	@Override
+	public synchronized List<List<String>> get() throws InterruptedException,
+			ExecutionException {
+		while (!done) {
+			wait();
+		}
+		return result();
+	}
+
+	@Override
+	public synchronized List<List<String>> get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		long end = System.currentTimeMillis() + unit.toMillis(timeout);
+		while (!done) {
+			long left = end - System.currentTimeMillis();
+			if (left <= 0) {
+				throw new TimeoutException();
+			}
+			wait(left);
+		}
+		return result();
+	}
+
+	private List<List<String>> result() throws ExecutionException {
+		if (error instanceof CancellationException) {
+			throw (CancellationException) error;
+		} else if (error != null) {
+			throw new ExecutionException(error);
+		}
+		return responses;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("CloudFuture[%s: %s]", host, request);
+	}
+}
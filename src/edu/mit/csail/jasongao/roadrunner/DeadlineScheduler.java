@@ -0,0 +1,115 @@
+package edu.mit.csail.jasongao.roadrunner;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+
+import android.os.Handler;
+
+/**
+ * Hard deadlines of the requests in the service's stores (pending GETs,
+ * offers, penalties), kept in a priority queue so the service wakes once,
+ * when the earliest is due, instead of polling every store. Nothing is
+ * posted while no deadline is pending. A request is added again whenever
+ * it goes into a store. Entries are never removed early: when one reaches
+ * the head it is dropped if the request has since left its store or been
+ * given another deadline. Runs on the service's handler thread.
+ */
+public class DeadlineScheduler {
+
+	private static class Entry implements Comparable<Entry> {
+		final long deadline;
+		final ResRequest req;
+		final Queue<ResRequest> store;
+
+		Entry(ResRequest req_, Queue<ResRequest> store_) {
+			this.deadline = req_.hardDeadline;
+			this.req = req_;
+			this.store = store_;
+		}
+
+		public int compareTo(Entry other) {
+			return (deadline < other.deadline) ? -1
+					: (deadline == other.deadline) ? 0 : 1;
+		}
+	}
+
+	private final RoadRunnerService rrs;
+	private final Handler handler;
+	private final PriorityQueue<Entry> deadlines = new PriorityQueue<Entry>();
+	private long wakeAt = 0; // 0 if nothing posted
+
+	/** Statistics */
+	private int expired, stale;
+
+	public DeadlineScheduler(RoadRunnerService rrs_, Handler handler_) {
+		this.rrs = rrs_;
+		this.handler = handler_;
+	}
+
+	/** Watch the hard deadline of a request just put into store */
+	public void add(ResRequest req, Queue<ResRequest> store) {
+		deadlines.add(new Entry(req, store));
+		schedule();
+	}
+
+	public void clear() {
+		deadlines.clear();
+		handler.removeCallbacks(tick);
+		wakeAt = 0;
+	}
+
+	public String stats() {
+		return String.format(
+				"Deadline scheduler: %d expired, %d stale, %d pending",
+				expired, stale, deadlines.size());
+	}
+
+	/** Post the wakeup for the head, if it isn't posted already */
+	private void schedule() {
+		Entry head = deadlines.peek();
+		// the old deadline checks fired once a deadline had passed
+		long due = (head != null) ? head.deadline + 1 : 0;
+		if (due == wakeAt) {
+			return;
+		}
+		handler.removeCallbacks(tick);
+		wakeAt = due;
+		if (head != null) {
+			handler.postDelayed(tick, Math.max(0, due - rrs.getTime()));
+		}
+	}
+
+	private final Runnable tick = new Runnable() {
+		public void run() {
+			wakeAt = 0;
+			long now = rrs.getTime();
+
+			// due requests still in their stores, by store
+			Map<Queue<ResRequest>, List<ResRequest>> due = new IdentityHashMap<Queue<ResRequest>, List<ResRequest>>();
+			while (!deadlines.isEmpty() && deadlines.peek().deadline < now) {
+				Entry e = deadlines.poll();
+				if (e.req.hardDeadline != e.deadline || !e.store.remove(e.req)) {
+					stale++;
+					continue;
+				}
+				List<ResRequest> reqs = due.get(e.store);
+				if (reqs == null) {
+					reqs = new ArrayList<ResRequest>();
+					due.put(e.store, reqs);
+				}
+				reqs.add(e.req);
+				expired++;
+			}
+
+			for (Map.Entry<Queue<ResRequest>, List<ResRequest>> e : due
+					.entrySet()) {
+				rrs.deadlinesExpired(e.getKey(), e.getValue());
+			}
+			schedule();
+		}
+	};
+}
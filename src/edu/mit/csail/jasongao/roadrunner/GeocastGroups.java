@@ -0,0 +1,107 @@
+package edu.mit.csail.jasongao.roadrunner;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Multicast group membership for geocast. The map is cut into square cells
+ * of ADHOC_GEOCAST_CELL_SIZE degrees, each with its own group address. A
+ * vehicle joins the groups of its own cell and the eight around it and
+ * sends to its own cell's group, so it hears everyone whose cell touches
+ * its own and nobody further away. Cells must be at least as wide as the
+ * radio range for this to miss no one in range.
+ */
+public class GeocastGroups {
+	private final MulticastSocket socket;
+	private final NetworkInterface intf;
+
+	/** Groups currently joined */
+	private final Set<InetAddress> joined = new HashSet<InetAddress>();
+	private int cellX, cellY;
+	private volatile InetSocketAddress sendGroup = null;
+
+	public GeocastGroups(MulticastSocket socket_, NetworkInterface intf_) {
+		this.socket = socket_;
+		this.intf = intf_;
+	}
+
+	/**
+	 * Follow a location, joining and leaving groups if it is in a new cell.
+	 * Returns true if the cell changed.
+	 */
+	public synchronized boolean move(double lat, double lng)
+			throws IOException {
+		int x = cell(lng), y = cell(lat);
+		if (sendGroup != null && x == cellX && y == cellY) {
+			return false;
+		}
+
+		Set<InetAddress> groups = new HashSet<InetAddress>();
+		for (int dx = -1; dx <= 1; dx++) {
+			for (int dy = -1; dy <= 1; dy++) {
+				groups.add(group(x + dx, y + dy));
+			}
+		}
+		for (InetAddress g : joined) {
+			if (!groups.contains(g)) {
+				socket.leaveGroup(new InetSocketAddress(g, 0), intf);
+			}
+		}
+		for (InetAddress g : groups) {
+			if (!joined.contains(g)) {
+				socket.joinGroup(new InetSocketAddress(g, 0), intf);
+			}
+		}
+		joined.clear();
+		joined.addAll(groups);
+
+		cellX = x;
+		cellY = y;
+		sendGroup = new InetSocketAddress(group(x, y), Globals.ADHOC_SEND_PORT);
+		return true;
+	}
+
+	/** Group of our current cell, or null before our first fix */
+	public InetSocketAddress sendGroup() {
+		return sendGroup;
+	}
+
+	public synchronized String cellName() {
+		return String.format("%d,%d", cellX, cellY);
+	}
+
+	/** Leave every group */
+	public synchronized void leave() {
+		for (InetAddress g : joined) {
+			try {
+				socket.leaveGroup(new InetSocketAddress(g, 0), intf);
+			} catch (IOException e) {
+			}
+		}
+		joined.clear();
+		sendGroup = null;
+	}
+
+	private static int cell(double degrees) {
+		return (int) Math.floor(degrees / Globals.ADHOC_GEOCAST_CELL_SIZE);
+	}
+
+	/**
+	 * Group address of a cell, the last two octets of the group prefix taken
+	 * from the low bits of its coordinates. Cells 256 apart share a group,
+	 * which is far beyond radio range.
+	 */
+	private static InetAddress group(int x, int y) throws UnknownHostException {
+		byte[] addr = InetAddress.getByName(Globals.ADHOC_GEOCAST_GROUP_PREFIX)
+				.getAddress();
+		addr[2] = (byte) x;
+		addr[3] = (byte) y;
+		return InetAddress.getByAddress(addr);
+	}
+}
@@ -2,10 +2,46 @@ package edu.mit.csail.jasongao.roadrunner;
 
 public class Globals {
 	/** Adhoc wireless communication parameters */
-	static final long ADHOC_ANNOUNCE_PERIOD = 2000 * 1;
+	static final long ADHOC_ANNOUNCE_PERIOD = 2000 * 1; // while we have offers or GETs
+	static final long ADHOC_ANNOUNCE_MIN_PERIOD = 250; // right after a change
+	static final long ADHOC_ANNOUNCE_MAX_PERIOD = 6000; // keepalive when idle
+	static final int ADHOC_ANNOUNCE_DENSE_NEIGHBORS = 8; // stretch beyond this
+	static final int ADHOC_OFFERS_SNAPSHOT_PERIOD = 8; // announces between full offer sets
+	static final boolean ADHOC_PUSH_ENABLED = true; // push offers to announced GETs
+	static final int ADHOC_TOKEN_VERDICTS = 64; // received tokens whose answer we keep
+	static final long ADHOC_REQUEST_TIMEOUT = 1000; // ms before asking another vehicle
 	static final boolean ADHOC_UDP_ONLY = true; // false to use TCP for transfer
 	static final int ADHOC_MAX_PACKET_SIZE = 1024; // bytes
+	static final boolean ADHOC_BINARY_CODEC = true; // false to send Java-serialized packets
+	static final int ADHOC_PACKET_POOL_SIZE = 32; // reusable received packets
+	static final int ADHOC_MAX_MESSAGE_SIZE = 16 * 1024; // bytes, fragmented above ADHOC_MAX_PACKET_SIZE
+	static final int ADHOC_REASSEMBLY_SLOTS = 8; // messages reassembled at once
+	static final int ADHOC_REASSEMBLY_TIMEOUT = 2000; // ms to receive all fragments
+	static final int ADHOC_WIFI_RANGE = 70; // meters, viable adhoc WiFi link
+	static final int ADHOC_DSRC_RANGE = 250; // meters, viable DSRC link
+
+	/** Token transfer retransmission */
+	static final long ADHOC_INITIAL_RTO = 200; // ms, before any RTT sample
+	static final long ADHOC_MIN_RTO = 50;
+	static final long ADHOC_MAX_RTO = 2000;
+	static final int ADHOC_MAX_TRANSMISSIONS = 6;
+
+	/** Duplicate nonce filter */
+	static final int NONCE_TABLE_SIZE = 256; // peers, power of two
+	static final long NONCE_PEER_TIMEOUT = 5 * 60 * 1000; // forget quiet peers
+
+	/** Neighbor table */
+	static final long NEIGHBOR_TIMEOUT = 2 * ADHOC_ANNOUNCE_MAX_PERIOD + 1000; // ms
+
 	final static public String ADHOC_SEND_REMOTE_ADDRESS = "192.168.42.255";
+
+	/**
+	 * Geocast: send to per-cell multicast groups instead of broadcasting.
+	 * Only for fleets where every vehicle runs a build that joins them.
+	 */
+	static final boolean ADHOC_GEOCAST = false;
+	static final double ADHOC_GEOCAST_CELL_SIZE = 0.004; // degrees, wider than ADHOC_DSRC_RANGE
+	static final String ADHOC_GEOCAST_GROUP_PREFIX = "239.192.0.0"; // cell x, y in last two octets
 	
 	/** Now set in MainActivity.onCreate() */
 	static String ADHOC_IFACE_NAME = "eth0"; // default to adhoc wifi
@@ -16,13 +52,16 @@ public class Globals {
 	/** Cloud parameters */
 	static final String CLOUD_HOST = "128.30.87.68";
 	static final int CLOUD_SOCKET_TIMEOUT = 3000;
+	static final int CLOUD_READ_TIMEOUT = 10000; // ms to wait for a response
+	static final int CLOUD_POOL_MAX_IDLE = 4; // kept-alive connections per host
+	static final long CLOUD_POOL_IDLE_TIMEOUT = 30 * 1000; // close idle connections after
+	static final int ADHOC_SERVER_IDLE_TIMEOUT = 2 * 30 * 1000; // ms, longer than CLOUD_POOL_IDLE_TIMEOUT
+	static final boolean CLOUD_NIO = true; // false to send every request on an AsyncTask
 	static final byte[] CLOUD_PUBLIC_KEY = null; // TODO
 	static final byte[] MY_PRIVATE_KEY = null; // TODO
 
 	/** Request timeouts */
 	static int REQUEST_PENALTY_VALID_PERIOD = 600000; // 10 min
-	static int REQUEST_PENALTY_CHECK_PERIOD = 60000; // 1 min
-	static int REQUEST_DEADLINE_CHECK_PERIOD = 500;
 	static int REQUEST_DIRECT_PUT_DEADLINE_FROM_NOW = 10 * 60 * 1000; // TODO
 	static int REQUEST_DIRECT_GET_DEADLINE_FROM_NOW = 10 * 60 * 1000; // TODO
 	static int REQUEST_RELAY_GET_DEADLINE_FROM_NOW = 3000; // deprecated
@@ -31,6 +70,18 @@ public class Globals {
 	static boolean RELAY_ENABLED = false; // doesn't work well currently
 	static final int LAST_DATA_ACTIVITY_THRESHOLD = 8000;
 	
+	/** Region lookup grid */
+	static final double REGION_INDEX_MIN_CELL_SIZE = 0.0001; // degrees, ~10 m
+	static final int REGION_INDEX_MAX_CELLS = 1 << 20;
+	static final double REGION_ADJACENCY_TOLERANCE = 0.0002; // degrees, ~20 m
+
+	/** Points per work unit for bulk trace classification */
+	static final int CLASSIFY_CHUNK_SIZE = 64 * 1024;
+
+	/** Region set files on external storage, used instead of built-in sets */
+	static final String REGION_FILE = "roadrunner/regions.rrs";
+	static final String REGION_TEXT_FILE = "roadrunner/regions.txt"; // compiled to REGION_FILE
+
 	/** Navigation */
 	static boolean NAV_SPEECH = true;
 	static boolean NAV_REQUESTS = true;
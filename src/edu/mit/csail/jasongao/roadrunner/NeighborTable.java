@@ -0,0 +1,221 @@
+package edu.mit.csail.jasongao.roadrunner;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import android.location.Location;
+
+/**
+ * Vehicles heard over adhoc, keyed by src. Each entry keeps the neighbour's
+ * last position, the regions it offers (as Region.index bits), its cellular
+ * data activity and link statistics, and is dropped after NEIGHBOR_TIMEOUT
+ * of silence. An inverted index from region to the neighbours offering it
+ * lets a new pending GET be matched straight away, without waiting for the
+ * next announcement. Used from the service's handler thread only.
+ */
+public class NeighborTable {
+
+	public static class Neighbor {
+		public final long id;
+		public double lat, lng;
+		public float speed, bearing;
+		public int dataActivity = -1;
+		public final BitSet offers = new BitSet();
+
+		/** Last full offer snapshot heard and the version offers is at */
+		final BitSet baseOffers = new BitSet();
+		int offersBase = -1, offersVersion = -1;
+
+		/** Link statistics */
+		public long firstHeard, lastHeard;
+		public int packetsHeard;
+		public final RttEstimator rtt = new RttEstimator();
+
+		Neighbor(long id_) {
+			this.id = id_;
+		}
+
+		/** Distance in meters from a location */
+		public float distanceTo(Location loc) {
+			float[] d = new float[1];
+			Location.distanceBetween(loc.getLatitude(), loc.getLongitude(),
+					lat, lng, d);
+			return d[0];
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"Neighbor[id=%d, offers=%s, heard=%d, srtt=%d]", id,
+					offers, packetsHeard, rtt.srtt());
+		}
+	}
+
+	private final Map<Long, Neighbor> neighbors = new HashMap<Long, Neighbor>();
+
+	/** Region id to the ids of neighbours offering it */
+	private final Map<Integer, Set<Long>> offeredBy = new HashMap<Integer, Set<Long>>();
+
+	/** Update the entry for a packet's sender, creating it if new */
+	public Neighbor heard(AdhocPacket p, long now) {
+		Neighbor n = neighbors.get(p.src);
+		if (n == null) {
+			n = new Neighbor(p.src);
+			n.firstHeard = now;
+			neighbors.put(p.src, n);
+		}
+		n.lat = p.lat;
+		n.lng = p.lng;
+		n.speed = p.speed;
+		n.bearing = p.bearing;
+		n.lastHeard = now;
+		n.packetsHeard++;
+		if (p.type == AdhocPacket.ANNOUNCE) {
+			n.dataActivity = p.dataActivity;
+		}
+		return n;
+	}
+
+	/** Replace a neighbour's offered regions, keeping the index current */
+	public void setOffers(Neighbor n, BitSet offers) {
+		BitSet removed = (BitSet) n.offers.clone();
+		removed.andNot(offers);
+		for (int i = removed.nextSetBit(0); i >= 0; i = removed
+				.nextSetBit(i + 1)) {
+			unindex(i, n.id);
+		}
+		BitSet added = (BitSet) offers.clone();
+		added.andNot(n.offers);
+		for (int i = added.nextSetBit(0); i >= 0; i = added.nextSetBit(i + 1)) {
+			index(i, n.id);
+		}
+		n.offers.clear();
+		n.offers.or(offers);
+	}
+
+	/**
+	 * Apply the offers carried in an ANNOUNCE. Returns false if it is a
+	 * delta against a snapshot we never heard, so the sender should be asked
+	 * for a new one.
+	 */
+	public boolean applyOffers(Neighbor n, AdhocPacket p) {
+		if (p.offersFull) {
+			n.baseOffers.clear();
+			if (p.tokensOffered != null) {
+				n.baseOffers.or(p.tokensOffered);
+			}
+			n.offersBase = p.offersBase;
+			n.offersVersion = p.offersVersion;
+			setOffers(n, n.baseOffers);
+			return true;
+		}
+
+		if (n.offersBase != p.offersBase) {
+			return false;
+		}
+		if (n.offersVersion != p.offersVersion) {
+			BitSet offers = (BitSet) n.baseOffers.clone();
+			if (p.tokensOffered != null) {
+				offers.or(p.tokensOffered);
+			}
+			if (p.tokensRemoved != null) {
+				offers.andNot(p.tokensRemoved);
+			}
+			n.offersVersion = p.offersVersion;
+			setOffers(n, offers);
+		}
+		return true;
+	}
+
+	public Neighbor get(long id) {
+		return neighbors.get(id);
+	}
+
+	public Collection<Neighbor> all() {
+		return neighbors.values();
+	}
+
+	public int size() {
+		return neighbors.size();
+	}
+
+	/** Ids of the neighbours currently offering a region */
+	public Set<Long> offering(int region) {
+		Set<Long> ids = offeredBy.get(region);
+		return (ids != null) ? Collections.unmodifiableSet(ids) : Collections
+				.<Long> emptySet();
+	}
+
+	/** Nearest neighbour within range offering a region, or null */
+	public Neighbor bestOffering(int region, Location me, float range) {
+		Set<Long> ids = offeredBy.get(region);
+		if (ids == null || me == null) {
+			return null;
+		}
+		Neighbor best = null;
+		float bestDistance = range;
+		for (Long id : ids) {
+			Neighbor n = neighbors.get(id);
+			float d = n.distanceTo(me);
+			if (d < bestDistance) {
+				best = n;
+				bestDistance = d;
+			}
+		}
+		return best;
+	}
+
+	/** RTT estimator for a peer, a fresh one if it isn't in the table */
+	public RttEstimator rtt(long id) {
+		Neighbor n = neighbors.get(id);
+		return (n != null) ? n.rtt : new RttEstimator();
+	}
+
+	/** Drop neighbours not heard from within NEIGHBOR_TIMEOUT */
+	public int expire(long now) {
+		int expired = 0;
+		for (Iterator<Neighbor> it = neighbors.values().iterator(); it
+				.hasNext();) {
+			Neighbor n = it.next();
+			if (now - n.lastHeard > Globals.NEIGHBOR_TIMEOUT) {
+				for (int i = n.offers.nextSetBit(0); i >= 0; i = n.offers
+						.nextSetBit(i + 1)) {
+					unindex(i, n.id);
+				}
+				it.remove();
+				expired++;
+			}
+		}
+		return expired;
+	}
+
+	public void clear() {
+		neighbors.clear();
+		offeredBy.clear();
+	}
+
+	private void index(int region, long id) {
+		Set<Long> ids = offeredBy.get(region);
+		if (ids == null) {
+			ids = new HashSet<Long>();
+			offeredBy.put(region, ids);
+		}
+		ids.add(id);
+	}
+
+	private void unindex(int region, long id) {
+		Set<Long> ids = offeredBy.get(region);
+		if (ids != null) {
+			ids.remove(id);
+			if (ids.isEmpty()) {
+				offeredBy.remove(region);
+			}
+		}
+	}
+}
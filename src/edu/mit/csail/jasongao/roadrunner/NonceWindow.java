@@ -0,0 +1,81 @@
+package edu.mit.csail.jasongao.roadrunner;
+
+/**
+ * Duplicate filter for packet nonces, one sliding window per peer as in the
+ * IPsec anti-replay window: the highest nonce heard plus a 64-bit bitmap of
+ * the nonces just below it. Peers live in a fixed direct-mapped table
+ * indexed by the low bits of their id (the last octet of their address),
+ * so checks are O(1), allocate nothing, and memory never grows. A peer
+ * restarts its nonces with each new epoch, which starts a fresh window.
+ * Entries not heard from for NONCE_PEER_TIMEOUT are treated as new peers.
+ */
+public class NonceWindow {
+	private static final int WINDOW = 64;
+	private static final long NO_PEER = Long.MIN_VALUE;
+
+	private final int mask;
+	private final long[] peers;
+	private final int[] epochs;
+	private final long[] highest;
+	private final long[] bitmap; // bit k set: nonce highest - k was heard
+	private final long[] lastHeard;
+
+	public NonceWindow() {
+		int size = Globals.NONCE_TABLE_SIZE;
+		this.mask = size - 1;
+		this.peers = new long[size];
+		this.epochs = new int[size];
+		this.highest = new long[size];
+		this.bitmap = new long[size];
+		this.lastHeard = new long[size];
+		clear();
+	}
+
+	/**
+	 * Record nonce from peer's run epoch. Returns true the first time a
+	 * nonce is heard, false for a duplicate or a nonce too old to tell.
+	 */
+	public boolean check(long peer, int epoch, long nonce, long now) {
+		int i = (int) peer & mask;
+
+		if (peers[i] != peer || epochs[i] != epoch
+				|| now - lastHeard[i] > Globals.NONCE_PEER_TIMEOUT) {
+			reset(i, peer, epoch, nonce, now);
+			return true;
+		}
+		lastHeard[i] = now;
+
+		if (nonce > highest[i]) {
+			long shift = nonce - highest[i];
+			bitmap[i] = (shift >= WINDOW) ? 1 : (bitmap[i] << shift) | 1;
+			highest[i] = nonce;
+			return true;
+		}
+
+		long diff = highest[i] - nonce;
+		if (diff >= WINDOW) {
+			return false;
+		}
+		long bit = 1L << diff;
+		if ((bitmap[i] & bit) != 0) {
+			return false;
+		}
+		bitmap[i] |= bit;
+		return true;
+	}
+
+	/** Forget every peer */
+	public void clear() {
+		for (int i = 0; i < peers.length; i++) {
+			peers[i] = NO_PEER;
+		}
+	}
+
+	private void reset(int i, long peer, int epoch, long nonce, long now) {
+		peers[i] = peer;
+		epochs[i] = epoch;
+		highest[i] = nonce;
+		bitmap[i] = 1;
+		lastHeard[i] = now;
+	}
+}
@@ -0,0 +1,64 @@
+package edu.mit.csail.jasongao.roadrunner;
+
+import java.util.BitSet;
+
+/**
+ * Sender side of delta-encoded ANNOUNCEs, over sets of Region.index. The
+ * offer set gets a new version whenever it changes. Most beacons carry only
+ * the regions added and removed since the last full snapshot, so a receiver
+ * that missed some beacons can still apply any later one. A full snapshot is
+ * sent every ADHOC_OFFERS_SNAPSHOT_PERIOD beacons, when the delta would be
+ * no smaller, or when a neighbour asks for one because it lacks our
+ * snapshot.
+ */
+public class OfferDelta {
+	private int version = 0;
+	private final BitSet current = new BitSet();
+
+	private int baseVersion = 0;
+	private final BitSet base = new BitSet();
+	private int sinceSnapshot = 0;
+	private boolean snapshotRequested = true;
+
+	/** Fill an ANNOUNCE's offer fields from the current offer set */
+	public void fill(AdhocPacket p, BitSet offers) {
+		if (!current.equals(offers)) {
+			version++;
+			current.clear();
+			current.or(offers);
+		}
+
+		BitSet added = (BitSet) current.clone();
+		added.andNot(base);
+		BitSet removed = (BitSet) base.clone();
+		removed.andNot(current);
+
+		p.offersVersion = version;
+		if (snapshotRequested
+				|| sinceSnapshot >= Globals.ADHOC_OFFERS_SNAPSHOT_PERIOD
+				|| added.cardinality() + removed.cardinality() >= current
+						.cardinality()) {
+			base.clear();
+			base.or(current);
+			baseVersion = version;
+			sinceSnapshot = 0;
+			snapshotRequested = false;
+
+			p.offersFull = true;
+			p.offersBase = version;
+			p.tokensOffered = (BitSet) current.clone();
+			p.tokensRemoved = null;
+		} else {
+			sinceSnapshot++;
+			p.offersFull = false;
+			p.offersBase = baseVersion;
+			p.tokensOffered = added;
+			p.tokensRemoved = removed;
+		}
+	}
+
+	/** Send a full snapshot with the next ANNOUNCE */
+	public void requestSnapshot() {
+		snapshotRequested = true;
+	}
+}
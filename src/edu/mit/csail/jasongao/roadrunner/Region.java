@@ -1,51 +1,114 @@
 package edu.mit.csail.jasongao.roadrunner;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import android.location.Location;
 
 public class Region {
 	
 	public String id;
-	
-	public List<Location> vertices;
+
+	/** Position of this region in its RegionIndex, -1 until indexed */
+	public int index = -1;
+
+	/** Packed vertex coordinates, only the first n entries are in use */
+	private double[] lats, lngs;
+	private int n;
+
+	/**
+	 * Inverse slope (longitude change per unit latitude) of the edge from
+	 * vertex i-1 to vertex i, wrapping so edge 0 closes the polygon
+	 */
+	private double[] slopes;
+
+	/** Bounding box of the vertices, kept current by addVertex */
+	public double minLat = Double.POSITIVE_INFINITY;
+	public double maxLat = Double.NEGATIVE_INFINITY;
+	public double minLng = Double.POSITIVE_INFINITY;
+	public double maxLng = Double.NEGATIVE_INFINITY;
 	
 	public Region(String id_) {
 		this.id = id_;
-		vertices = new ArrayList<Location>();
+		lats = new double[4];
+		lngs = new double[4];
+		slopes = new double[4];
 	}
 	
 	public void addVertex(double latitude, double longitude) {
-		Location v = new Location("");
-		v.setLongitude(longitude);
-		v.setLatitude(latitude);
-		vertices.add(v);
+		if (n == lats.length) {
+			lats = grow(lats);
+			lngs = grow(lngs);
+			slopes = grow(slopes);
+		}
+		lats[n] = latitude;
+		lngs[n] = longitude;
+		n++;
+
+		// the new vertex ends edge n-1 and starts the closing edge 0
+		slopes[n - 1] = slope(n - 1);
+		slopes[0] = slope(0);
+
+		minLat = Math.min(minLat, latitude);
+		maxLat = Math.max(maxLat, latitude);
+		minLng = Math.min(minLng, longitude);
+		maxLng = Math.max(maxLng, longitude);
+	}
+
+	public int vertexCount() {
+		return n;
+	}
+
+	public double getLatitude(int i) {
+		return lats[i];
+	}
+
+	public double getLongitude(int i) {
+		return lngs[i];
+	}
+
+	/* Test if a point is inside this Region's bounding box */
+	public boolean boxContains(double latitude, double longitude) {
+		return latitude >= minLat && latitude <= maxLat
+				&& longitude >= minLng && longitude <= maxLng;
 	}
 
 	/* Test if a Location p is inside this Region */
 	public boolean contains(Location p) {
+		return contains(p.getLatitude(), p.getLongitude());
+	}
 
-		double x = p.getLongitude();
-		double y = p.getLatitude();
-		int polySides = vertices.size();
+	/* Test if a point is inside this Region, by counting edge crossings */
+	public boolean contains(double y, double x) {
+		if (!boxContains(y, x)) {
+			return false;
+		}
+
+		final double[] lats = this.lats;
+		final double[] lngs = this.lngs;
+		final double[] slopes = this.slopes;
 		boolean oddTransitions = false;
 
-		for (int i = 0, j = polySides - 1; i < polySides; j = i++) {
-			if ((vertices.get(i).getLatitude() < y && vertices.get(j)
-					.getLatitude() >= y)
-					|| (vertices.get(j).getLatitude() < y && vertices.get(i)
-							.getLatitude() >= y)) {
-				if (vertices.get(i).getLongitude()
-						+ (y - vertices.get(i).getLatitude())
-						/ (vertices.get(j).getLatitude() - vertices.get(i)
-								.getLatitude())
-						* (vertices.get(j).getLongitude() - vertices.get(i)
-								.getLongitude()) < x) {
+		for (int i = 0, j = n - 1; i < n; j = i++) {
+			double yi = lats[i];
+			double yj = lats[j];
+			if ((yi < y && yj >= y) || (yj < y && yi >= y)) {
+				if (lngs[i] + (y - yi) * slopes[i] < x) {
 					oddTransitions = !oddTransitions;
 				}
 			}
 		}
 		return oddTransitions;
 	}
+
+	/** Inverse slope of the edge ending at vertex i */
+	private double slope(int i) {
+		int j = (i == 0) ? n - 1 : i - 1;
+		double dLat = lats[j] - lats[i];
+		// horizontal edges are never crossed, so their slope is unused
+		return (dLat == 0) ? 0 : (lngs[j] - lngs[i]) / dLat;
+	}
+
+	private static double[] grow(double[] a) {
+		double[] b = new double[a.length * 2];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
 }
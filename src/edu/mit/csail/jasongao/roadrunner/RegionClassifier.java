@@ -0,0 +1,99 @@
+package edu.mit.csail.jasongao.roadrunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bulk point-in-region classification for recorded traces. Points are
+ * passed as packed latitude/longitude arrays and split into chunks that
+ * worker threads claim one at a time. Within a chunk each lookup is seeded
+ * with the previous point's region, the same way onLocationChanged does, so
+ * consecutive fixes of a drive mostly skip the grid search.
+ */
+public class RegionClassifier {
+	/** Classification of a point outside every region */
+	public static final int FREE = -1;
+
+	private final RegionIndex idx;
+	private final ExecutorService pool;
+	private final int threads;
+
+	public RegionClassifier(RegionIndex idx_) {
+		this(idx_, Runtime.getRuntime().availableProcessors());
+	}
+
+	public RegionClassifier(RegionIndex idx_, int threads_) {
+		this.idx = idx_;
+		this.threads = threads_;
+		this.pool = Executors.newFixedThreadPool(threads_);
+	}
+
+	/** Region id for a classification result, "FREE" for FREE */
+	public String regionId(int index) {
+		return (index == FREE) ? "FREE" : idx.id(index);
+	}
+
+	/** Returns the RegionIndex index of each point, or FREE */
+	public int[] classify(double[] lats, double[] lngs)
+			throws InterruptedException {
+		int[] out = new int[lats.length];
+		classify(lats, lngs, out);
+		return out;
+	}
+
+	/** Classify every point into out, splitting the work across threads */
+	public void classify(final double[] lats, final double[] lngs,
+			final int[] out) throws InterruptedException {
+		if (lats.length != lngs.length || out.length < lats.length) {
+			throw new IllegalArgumentException("array lengths differ");
+		}
+
+		final int chunk = Globals.CLASSIFY_CHUNK_SIZE;
+		final int chunks = (lats.length + chunk - 1) / chunk;
+		final AtomicInteger next = new AtomicInteger(0);
+
+		List<Future<Void>> workers = new ArrayList<Future<Void>>();
+		for (int t = 0; t < Math.min(threads, chunks); t++) {
+			workers.add(pool.submit(new Callable<Void>() {
+				public Void call() {
+					int c;
+					while ((c = next.getAndIncrement()) < chunks) {
+						int from = c * chunk;
+						classifyRange(lats, lngs, out, from,
+								Math.min(from + chunk, lats.length));
+					}
+					return null;
+				}
+			}));
+		}
+
+		try {
+			for (Future<Void> w : workers) {
+				w.get();
+			}
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/** Classify points [from, to) on the calling thread */
+	public void classifyRange(double[] lats, double[] lngs, int[] out,
+			int from, int to) {
+		Region last = null;
+		for (int i = from; i < to; i++) {
+			last = idx.find(lats[i], lngs[i], last);
+			out[i] = (last != null) ? last.index : FREE;
+		}
+	}
+
+	/** Stop the worker threads */
+	public void shutdown() {
+		pool.shutdown();
+	}
+}
@@ -0,0 +1,318 @@
+package edu.mit.csail.jasongao.roadrunner;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary region set file. The file carries the RegionIndex grid and
+ * adjacency tables along with the polygons, so loading it is a single mmap:
+ * lookups read the tables straight from the mapping and a Region object is
+ * only built the first time a point falls in its bounding box.
+ *
+ * Layout, big-endian:
+ *
+ * <pre>
+ * int magic, int version, int regionCount, int rows, int cols,
+ * double minLat, double minLng, double cellSize,
+ * int cellItemCount, int adjItemCount, int reserved
+ * double[4 * regionCount]     boxes (minLat, maxLat, minLng, maxLng)
+ * int[regionCount]            record offsets
+ * int[rows * cols + 1]        cellStart
+ * int[cellItemCount]          cellItems
+ * int[regionCount + 1]        adjStart
+ * int[adjItemCount]           adjItems
+ * records: short idLength, byte[] id (UTF-8), int vertexCount,
+ *          vertexCount * (double lat, double lng)
+ * </pre>
+ */
+public class RegionFile {
+	static final int MAGIC = 0x5252474e; // "RRGN"
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 56;
+
+	private final ByteBuffer buf;
+	private final int recordOffsets;
+
+	private RegionFile(ByteBuffer buf_, int recordOffsets_) {
+		this.buf = buf_;
+		this.recordOffsets = recordOffsets_;
+	}
+
+	/** Memory-map a region file and return an index over it */
+	public static RegionIndex map(File f) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		MappedByteBuffer buf;
+		try {
+			FileChannel ch = raf.getChannel();
+			buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+		} finally {
+			raf.close(); // the mapping stays valid
+		}
+
+		if (buf.capacity() < HEADER_SIZE || buf.getInt(0) != MAGIC) {
+			throw new IOException("not a region file: " + f);
+		}
+		if (buf.getInt(4) != VERSION) {
+			throw new IOException("unsupported region file version "
+					+ buf.getInt(4));
+		}
+		int n = buf.getInt(8);
+		int rows = buf.getInt(12);
+		int cols = buf.getInt(16);
+		int cellItemCount = buf.getInt(44);
+		int adjItemCount = buf.getInt(48);
+		if (n < 0 || rows < 0 || cols < 0 || cellItemCount < 0
+				|| adjItemCount < 0
+				|| HEADER_SIZE + 36L * n + 4L * rows * cols + 4L
+						* cellItemCount + 4L * adjItemCount + 8 > buf
+						.capacity()) {
+			throw new IOException("truncated region file: " + f);
+		}
+
+		int boxesOff = HEADER_SIZE;
+		int recOff = boxesOff + 32 * n;
+		int cellStartOff = recOff + 4 * n;
+		int cellItemsOff = cellStartOff + 4 * (rows * cols + 1);
+		int adjStartOff = cellItemsOff + 4 * cellItemCount;
+		int adjItemsOff = adjStartOff + 4 * (n + 1);
+		int recordsOff = adjItemsOff + 4 * adjItemCount;
+
+		// check everything lookups will read, so a bad file fails here and
+		// not later on the location path
+		checkTable(buf, cellStartOff, rows * cols + 1, cellItemCount + 1, f);
+		checkTable(buf, cellItemsOff, cellItemCount, n, f);
+		checkTable(buf, adjStartOff, n + 1, adjItemCount + 1, f);
+		checkTable(buf, adjItemsOff, adjItemCount, n, f);
+		for (int i = 0; i < n; i++) {
+			checkRecord(buf, buf.getInt(recOff + 4 * i), recordsOff, f);
+		}
+
+		RegionIndex idx = new RegionIndex(new RegionFile(buf, recOff), n);
+		idx.rows = rows;
+		idx.cols = cols;
+		idx.minLat = buf.getDouble(20);
+		idx.minLng = buf.getDouble(28);
+		idx.cellSize = buf.getDouble(36);
+		idx.boxes = slice(buf, boxesOff, 32 * n).asDoubleBuffer();
+		idx.cellStart = slice(buf, cellStartOff, 4 * (rows * cols + 1))
+				.asIntBuffer();
+		idx.cellItems = slice(buf, cellItemsOff, 4 * cellItemCount)
+				.asIntBuffer();
+		idx.adjStart = slice(buf, adjStartOff, 4 * (n + 1)).asIntBuffer();
+		idx.adjItems = slice(buf, adjItemsOff, 4 * adjItemCount)
+				.asIntBuffer();
+		return idx;
+	}
+
+	/** Every int in a table must be in [0, limit) */
+	private static void checkTable(ByteBuffer buf, int off, int count,
+			int limit, File f) throws IOException {
+		for (int k = 0; k < count; k++) {
+			int v = buf.getInt(off + 4 * k);
+			if (v < 0 || v >= limit) {
+				throw new IOException(String.format(
+						"corrupt region file %s: table entry %d at %d", f, v,
+						off + 4 * k));
+			}
+		}
+	}
+
+	/**
+	 * A record must lie wholly between the tables and the end of the file
+	 * and have at least 3 vertices
+	 */
+	private static void checkRecord(ByteBuffer buf, int off, int recordsOff,
+			File f) throws IOException {
+		long cap = buf.capacity();
+		if (off >= recordsOff && off + 2L <= cap) {
+			long countOff = off + 2L + (buf.getShort(off) & 0xffff);
+			if (countOff + 4 <= cap) {
+				int vertexCount = buf.getInt((int) countOff);
+				if (vertexCount >= 3
+						&& countOff + 4 + 16L * vertexCount <= cap) {
+					return;
+				}
+			}
+		}
+		throw new IOException(String.format(
+				"corrupt region file %s: bad record at %d", f, off));
+	}
+
+	/** Build region i from its record */
+	Region readRegion(int i) {
+		ByteBuffer b = buf.duplicate();
+		b.position(buf.getInt(recordOffsets + 4 * i));
+		Region r = new Region(readId(b));
+		int vertexCount = b.getInt();
+		for (int v = 0; v < vertexCount; v++) {
+			r.addVertex(b.getDouble(), b.getDouble());
+		}
+		return r;
+	}
+
+	/** Id of region i, from the start of its record */
+	String readId(int i) {
+		ByteBuffer b = buf.duplicate();
+		b.position(buf.getInt(recordOffsets + 4 * i));
+		return readId(b);
+	}
+
+	/** Read a record's id, leaving b at its vertex count */
+	private static String readId(ByteBuffer b) {
+		byte[] idBytes = new byte[b.getShort() & 0xffff];
+		b.get(idBytes);
+		try {
+			return new String(idBytes, "UTF-8");
+		} catch (java.io.UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Write an index and its regions out as a region file. It is written
+	 * beside f and renamed over it, so f is never left half written.
+	 */
+	public static void write(RegionIndex idx, File f) throws IOException {
+		int n = idx.size();
+		int cells = idx.rows * idx.cols;
+		int cellItemCount = idx.cellStart.get(cells);
+		int adjItemCount = idx.adjStart.get(n);
+
+		byte[][] ids = new byte[n][];
+		for (int i = 0; i < n; i++) {
+			ids[i] = idx.id(i).getBytes("UTF-8");
+		}
+
+		File tmp = new File(f.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp)));
+		boolean written = false;
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(n);
+			out.writeInt(idx.rows);
+			out.writeInt(idx.cols);
+			out.writeDouble(idx.minLat);
+			out.writeDouble(idx.minLng);
+			out.writeDouble(idx.cellSize);
+			out.writeInt(cellItemCount);
+			out.writeInt(adjItemCount);
+			out.writeInt(0);
+
+			for (int k = 0; k < 4 * n; k++) {
+				out.writeDouble(idx.boxes.get(k));
+			}
+
+			int off = HEADER_SIZE + 32 * n + 4 * n + 4 * (cells + 1) + 4
+					* cellItemCount + 4 * (n + 1) + 4 * adjItemCount;
+			for (int i = 0; i < n; i++) {
+				out.writeInt(off);
+				off += 2 + ids[i].length + 4 + 16 * idx.get(i).vertexCount();
+			}
+
+			for (int k = 0; k <= cells; k++) {
+				out.writeInt(idx.cellStart.get(k));
+			}
+			for (int k = 0; k < cellItemCount; k++) {
+				out.writeInt(idx.cellItems.get(k));
+			}
+			for (int k = 0; k <= n; k++) {
+				out.writeInt(idx.adjStart.get(k));
+			}
+			for (int k = 0; k < adjItemCount; k++) {
+				out.writeInt(idx.adjItems.get(k));
+			}
+
+			for (int i = 0; i < n; i++) {
+				Region r = idx.get(i);
+				out.writeShort(ids[i].length);
+				out.write(ids[i]);
+				out.writeInt(r.vertexCount());
+				for (int v = 0; v < r.vertexCount(); v++) {
+					out.writeDouble(r.getLatitude(v));
+					out.writeDouble(r.getLongitude(v));
+				}
+			}
+			out.close();
+			written = true;
+		} finally {
+			if (!written) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+				tmp.delete();
+			}
+		}
+		if (!tmp.renameTo(f)) {
+			tmp.delete();
+			throw new IOException("couldn't rename " + tmp + " to " + f);
+		}
+	}
+
+	/**
+	 * Read regions from a text file, one region per line:
+	 * "id lat,lng lat,lng ...". Blank lines and lines starting with # are
+	 * skipped. A malformed vertex or a region with fewer than 3 vertices is
+	 * an IOException naming the file and line.
+	 */
+	public static List<Region> readText(File f) throws IOException {
+		List<Region> rs = new ArrayList<Region>();
+		BufferedReader reader = new BufferedReader(new FileReader(f));
+		try {
+			String line;
+			int lineNo = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNo++;
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				String[] parts = line.split("\\s+");
+				Region r = new Region(parts[0]);
+				for (int k = 1; k < parts.length; k++) {
+					String[] ll = parts[k].split(",");
+					if (ll.length != 2) {
+						throw new IOException(String.format(
+								"%s:%d: bad vertex %s", f, lineNo, parts[k]));
+					}
+					try {
+						r.addVertex(Double.parseDouble(ll[0]),
+								Double.parseDouble(ll[1]));
+					} catch (NumberFormatException e) {
+						throw new IOException(String.format(
+								"%s:%d: bad vertex %s", f, lineNo, parts[k]));
+					}
+				}
+				if (r.vertexCount() < 3) {
+					throw new IOException(String.format(
+							"%s:%d: region %s has fewer than 3 vertices", f,
+							lineNo, r.id));
+				}
+				rs.add(r);
+			}
+		} finally {
+			reader.close();
+		}
+		return rs;
+	}
+
+	private static ByteBuffer slice(ByteBuffer buf, int off, int len) {
+		ByteBuffer b = buf.duplicate();
+		b.position(off);
+		b.limit(off + len);
+		return b.slice();
+	}
+}
@@ -0,0 +1,384 @@
+package edu.mit.csail.jasongao.roadrunner;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.CRC32;
+
+import android.location.Location;
+
+/**
+ * Uniform grid over Region bounding boxes. Each cell lists the regions whose
+ * box overlaps it, so a lookup only runs Region.contains on the few regions
+ * near the fix instead of on every region in the set.
+ * 
+ * Also holds the region adjacency graph: two regions are neighbours when
+ * their boundaries touch or come within REGION_ADJACENCY_TOLERANCE. Vehicles
+ * move from a region into one of its neighbours, so lookups seeded with the
+ * last region rarely need the grid at all.
+ */
+public class RegionIndex {
+	/** Regions by index; entries of a mapped index are built on first use */
+	private final AtomicReferenceArray<Region> regions;
+	private final int count;
+
+	/** Source of lazily built regions, null for an in-memory index */
+	private final RegionFile file;
+
+	/** Bounding box of region i is boxes[4i..4i+3]: minLat, maxLat, minLng, maxLng */
+	DoubleBuffer boxes;
+
+	/** Grid geometry, in degrees */
+	double minLat, minLng, cellSize;
+	int rows, cols;
+
+	/** Regions overlapping cell c are cellItems[cellStart[c]..cellStart[c+1]) */
+	IntBuffer cellStart;
+	IntBuffer cellItems;
+
+	/** Neighbours of region i are adjItems[adjStart[i]..adjStart[i+1]) */
+	IntBuffer adjStart;
+	IntBuffer adjItems;
+
+	/** Region id to index, and a checksum of the ids; built on first use */
+	private volatile Map<String, Integer> ids;
+	private int tag;
+
+	public RegionIndex(List<Region> rs) {
+		this.count = rs.size();
+		this.file = null;
+		this.regions = new AtomicReferenceArray<Region>(count);
+		double[] bs = new double[4 * count];
+		for (int i = 0; i < count; i++) {
+			Region r = rs.get(i);
+			r.index = i;
+			regions.set(i, r);
+			bs[4 * i] = r.minLat;
+			bs[4 * i + 1] = r.maxLat;
+			bs[4 * i + 2] = r.minLng;
+			bs[4 * i + 3] = r.maxLng;
+		}
+		this.boxes = DoubleBuffer.wrap(bs);
+		buildGrid();
+		buildAdjacency();
+	}
+
+	/** Index over a mapped region file; RegionFile fills in the tables */
+	RegionIndex(RegionFile file_, int count_) {
+		this.count = count_;
+		this.file = file_;
+		this.regions = new AtomicReferenceArray<Region>(count);
+	}
+
+	/** Number of regions in the index */
+	public int size() {
+		return count;
+	}
+
+	/** Region i, building it from the region file if needed */
+	public Region get(int i) {
+		Region r = regions.get(i);
+		if (r == null) {
+			r = file.readRegion(i);
+			r.index = i;
+			if (!regions.compareAndSet(i, null, r)) {
+				r = regions.get(i);
+			}
+		}
+		return r;
+	}
+
+	/** Id of region i, read without building the region */
+	public String id(int i) {
+		Region r = regions.get(i);
+		return (r != null) ? r.id : file.readId(i);
+	}
+
+	/** Index of the region with an id, or -1 if there is none */
+	public int indexOf(String id) {
+		Integer i = ids().get(id);
+		return (i != null) ? i : -1;
+	}
+
+	/**
+	 * Checksum of the region ids in index order. Vehicles whose tags match
+	 * number their regions the same way, so they can exchange indexes
+	 * instead of ids.
+	 */
+	public int tag() {
+		ids();
+		return tag;
+	}
+
+	private Map<String, Integer> ids() {
+		Map<String, Integer> m = ids;
+		if (m != null) {
+			return m;
+		}
+		synchronized (this) {
+			if (ids == null) {
+				m = new HashMap<String, Integer>(2 * count);
+				CRC32 crc = new CRC32();
+				try {
+					for (int i = 0; i < count; i++) {
+						String id = id(i);
+						m.put(id, i);
+						crc.update(id.getBytes("UTF-8"));
+						crc.update('\n');
+					}
+				} catch (UnsupportedEncodingException e) {
+					throw new RuntimeException(e);
+				}
+				tag = (int) crc.getValue();
+				ids = m;
+			}
+			return ids;
+		}
+	}
+
+	/** Returns the Region containing loc, or null if it is in none. */
+	public Region find(Location loc) {
+		return find(loc.getLatitude(), loc.getLongitude());
+	}
+
+	/**
+	 * Returns the Region containing a point, testing the last region and its
+	 * neighbours before falling back to the grid. last may be null.
+	 */
+	public Region find(double lat, double lng, Region last) {
+		if (last != null) {
+			if (last.contains(lat, lng)) {
+				return last;
+			}
+			int end = adjStart.get(last.index + 1);
+			for (int k = adjStart.get(last.index); k < end; k++) {
+				int i = adjItems.get(k);
+				if (boxContains(i, lat, lng) && get(i).contains(lat, lng)) {
+					return get(i);
+				}
+			}
+		}
+		return find(lat, lng);
+	}
+
+	/** Neighbouring regions of r */
+	public Region[] neighbours(Region r) {
+		int start = adjStart.get(r.index);
+		Region[] ns = new Region[adjStart.get(r.index + 1) - start];
+		for (int k = 0; k < ns.length; k++) {
+			ns[k] = get(adjItems.get(start + k));
+		}
+		return ns;
+	}
+
+	/** Returns the Region containing a point, or null if it is in none. */
+	public Region find(double lat, double lng) {
+		int c = cellOf(lat, lng);
+		if (c < 0) {
+			return null;
+		}
+		int end = cellStart.get(c + 1);
+		for (int k = cellStart.get(c); k < end; k++) {
+			int i = cellItems.get(k);
+			// only build regions whose box contains the point
+			if (boxContains(i, lat, lng) && get(i).contains(lat, lng)) {
+				return get(i);
+			}
+		}
+		return null;
+	}
+
+	private boolean boxContains(int i, double lat, double lng) {
+		return lat >= boxes.get(4 * i) && lat <= boxes.get(4 * i + 1)
+				&& lng >= boxes.get(4 * i + 2) && lng <= boxes.get(4 * i + 3);
+	}
+
+	/** Grid cell holding a point, or -1 if it falls outside the grid. */
+	private int cellOf(double lat, double lng) {
+		if (rows == 0) {
+			return -1;
+		}
+		int row = (int) Math.floor((lat - minLat) / cellSize);
+		int col = (int) Math.floor((lng - minLng) / cellSize);
+		if (row < 0 || col < 0 || row > rows || col > cols) {
+			return -1;
+		}
+		// points on the far edge of the grid belong to the last cell
+		return Math.min(row, rows - 1) * cols + Math.min(col, cols - 1);
+	}
+
+	private void buildGrid() {
+		// Bounds of the whole set and the average region extent
+		double maxLat = Double.NEGATIVE_INFINITY;
+		double maxLng = Double.NEGATIVE_INFINITY;
+		double extent = 0;
+		int counted = 0;
+		minLat = Double.POSITIVE_INFINITY;
+		minLng = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < count; i++) {
+			Region r = get(i);
+			if (r.minLat > r.maxLat) {
+				continue; // no vertices yet
+			}
+			minLat = Math.min(minLat, r.minLat);
+			minLng = Math.min(minLng, r.minLng);
+			maxLat = Math.max(maxLat, r.maxLat);
+			maxLng = Math.max(maxLng, r.maxLng);
+			extent += Math.max(r.maxLat - r.minLat, r.maxLng - r.minLng);
+			counted++;
+		}
+		if (counted == 0) {
+			rows = cols = 0;
+			cellStart = IntBuffer.wrap(new int[] { 0 });
+			cellItems = IntBuffer.wrap(new int[0]);
+			return;
+		}
+
+		// Cells about the size of a region, so each region covers few cells
+		cellSize = Math.max(extent / counted,
+				Globals.REGION_INDEX_MIN_CELL_SIZE);
+		do {
+			rows = (int) ((maxLat - minLat) / cellSize) + 1;
+			cols = (int) ((maxLng - minLng) / cellSize) + 1;
+			if ((long) rows * cols <= Globals.REGION_INDEX_MAX_CELLS) {
+				break;
+			}
+			cellSize *= 2;
+		} while (true);
+
+		// Two passes: count regions per cell, then fill
+		int[] cellStart = new int[rows * cols + 1];
+		for (int i = 0; i < count; i++) {
+			Region r = get(i);
+			if (r.minLat > r.maxLat) {
+				continue;
+			}
+			int r0 = (int) ((r.minLat - minLat) / cellSize);
+			int r1 = (int) ((r.maxLat - minLat) / cellSize);
+			int c0 = (int) ((r.minLng - minLng) / cellSize);
+			int c1 = (int) ((r.maxLng - minLng) / cellSize);
+			for (int row = r0; row <= r1; row++) {
+				for (int col = c0; col <= c1; col++) {
+					cellStart[row * cols + col + 1]++;
+				}
+			}
+		}
+		for (int c = 0; c < rows * cols; c++) {
+			cellStart[c + 1] += cellStart[c];
+		}
+
+		int[] cellItems = new int[cellStart[rows * cols]];
+		int[] fill = new int[rows * cols];
+		for (int i = 0; i < count; i++) {
+			Region r = get(i);
+			if (r.minLat > r.maxLat) {
+				continue;
+			}
+			int r0 = (int) ((r.minLat - minLat) / cellSize);
+			int r1 = (int) ((r.maxLat - minLat) / cellSize);
+			int c0 = (int) ((r.minLng - minLng) / cellSize);
+			int c1 = (int) ((r.maxLng - minLng) / cellSize);
+			for (int row = r0; row <= r1; row++) {
+				for (int col = c0; col <= c1; col++) {
+					int c = row * cols + col;
+					cellItems[cellStart[c] + fill[c]++] = i;
+				}
+			}
+		}
+		this.cellStart = IntBuffer.wrap(cellStart);
+		this.cellItems = IntBuffer.wrap(cellItems);
+	}
+
+	private void buildAdjacency() {
+		double tol = Globals.REGION_ADJACENCY_TOLERANCE;
+		int[] adjStart = new int[count + 1];
+		int[] items = new int[count * 4];
+		int n = 0;
+		int[] seen = new int[count];
+		Arrays.fill(seen, -1);
+
+		for (int i = 0; i < count; i++) {
+			adjStart[i] = n;
+			Region a = get(i);
+			if (a.minLat > a.maxLat) {
+				continue;
+			}
+
+			// candidates are the regions sharing a grid cell with a's box
+			int r0 = Math.max(0, (int) ((a.minLat - tol - minLat) / cellSize));
+			int r1 = Math.min(rows - 1,
+					(int) ((a.maxLat + tol - minLat) / cellSize));
+			int c0 = Math.max(0, (int) ((a.minLng - tol - minLng) / cellSize));
+			int c1 = Math.min(cols - 1,
+					(int) ((a.maxLng + tol - minLng) / cellSize));
+			for (int row = r0; row <= r1; row++) {
+				for (int col = c0; col <= c1; col++) {
+					int c = row * cols + col;
+					int end = cellStart.get(c + 1);
+					for (int k = cellStart.get(c); k < end; k++) {
+						int j = cellItems.get(k);
+						if (j == i || seen[j] == i) {
+							continue;
+						}
+						seen[j] = i;
+						if (adjacent(a, get(j), tol)) {
+							if (n == items.length) {
+								items = Arrays.copyOf(items,
+										items.length * 2 + 1);
+							}
+							items[n++] = j;
+						}
+					}
+				}
+			}
+		}
+		adjStart[count] = n;
+		this.adjStart = IntBuffer.wrap(adjStart);
+		this.adjItems = IntBuffer.wrap(Arrays.copyOf(items, n));
+	}
+
+	/** True if the boundaries of a and b come within tol degrees */
+	private static boolean adjacent(Region a, Region b, double tol) {
+		if (a.minLat > b.maxLat + tol || b.minLat > a.maxLat + tol
+				|| a.minLng > b.maxLng + tol || b.minLng > a.maxLng + tol) {
+			return false;
+		}
+		return verticesNearEdges(a, b, tol) || verticesNearEdges(b, a, tol);
+	}
+
+	/** True if some vertex of a lies within tol of an edge of b */
+	private static boolean verticesNearEdges(Region a, Region b, double tol) {
+		double tol2 = tol * tol;
+		int nb = b.vertexCount();
+		for (int v = 0; v < a.vertexCount(); v++) {
+			double py = a.getLatitude(v);
+			double px = a.getLongitude(v);
+			for (int i = 0, j = nb - 1; i < nb; j = i++) {
+				if (segmentDistance2(py, px, b.getLatitude(j),
+						b.getLongitude(j), b.getLatitude(i),
+						b.getLongitude(i)) <= tol2) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/** Squared distance from point p to segment ab, in degrees */
+	private static double segmentDistance2(double py, double px, double ay,
+			double ax, double by, double bx) {
+		double dy = by - ay;
+		double dx = bx - ax;
+		double len2 = dy * dy + dx * dx;
+		double t = (len2 == 0) ? 0 : ((py - ay) * dy + (px - ax) * dx) / len2;
+		t = Math.max(0, Math.min(1, t));
+		double ey = ay + t * dy - py;
+		double ex = ax + t * dx - px;
+		return ey * ey + ex * ex;
+	}
+}
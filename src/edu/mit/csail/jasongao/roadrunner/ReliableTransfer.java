@@ -0,0 +1,180 @@
+package edu.mit.csail.jasongao.roadrunner;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import android.os.Handler;
+
+/**
+ * Reliable delivery of TOKEN_SENDs and TOKEN_BUNDLE_SENDs over adhoc UDP.
+ * Each packet is sent once
+ * and retransmitted with exponential backoff until the receiver ACKs its
+ * nonce or ADHOC_MAX_TRANSMISSIONS is reached. The first timeout comes from
+ * the peer's measured RTT, so good links usually cost one transmission and
+ * lossy links get as many as they need. Runs on the service's handler
+ * thread.
+ */
+public class ReliableTransfer {
+	private final RoadRunnerService rrs;
+	private final Handler handler;
+
+	/** Tokens in flight in one packet, keyed by packet nonce */
+	private static class Pending {
+		AdhocPacket packet;
+		List<ResRequest> tokens;
+		int transmissions;
+		long lastSent;
+		long timeout;
+	}
+
+	private final Map<Long, Pending> unacked = new HashMap<Long, Pending>();
+
+	public ReliableTransfer(RoadRunnerService rrs_, Handler handler_) {
+		this.rrs = rrs_;
+		this.handler = handler_;
+	}
+
+	/** Send a TOKEN_SEND carrying token and keep it until ACKed */
+	public void send(AdhocPacket p, ResRequest token) {
+		send(p, Collections.singletonList(token));
+	}
+
+	/** Send a packet carrying tokens and keep them until ACKed */
+	public void send(AdhocPacket p, List<ResRequest> tokens) {
+		Pending t = new Pending();
+		t.packet = p;
+		t.tokens = tokens;
+		t.timeout = rtt(p.dst).rto();
+		unacked.put(p.nonce, t);
+		transmit(t, System.currentTimeMillis());
+		schedule();
+	}
+
+	/**
+	 * Handle a TOKEN_ACK from src for nonce. The receiver refused every token
+	 * if rejected, else those whose Region.index is in rejectedRegions (may be
+	 * null).
+	 */
+	public void acked(long src, long nonce, boolean rejected,
+			BitSet rejectedRegions) {
+		Pending t = unacked.get(nonce);
+		if (t == null || t.packet.dst != src) {
+			return; // duplicate ACK
+		}
+		unacked.remove(nonce);
+
+		long rtt = System.currentTimeMillis() - t.lastSent;
+		// Karn: an ACK after a retransmission can't be matched to a copy
+		if (t.transmissions == 1) {
+			rtt(src).sample(rtt);
+		}
+		rrs.log(String.format(
+				"Token(s) %s %s by %d after %d transmission(s), rtt %d ms",
+				regions(t), rejected ? "rejected" : "ACKed", src,
+				t.transmissions, rtt));
+		for (ResRequest token : t.tokens) {
+			if (rejected || refused(token, rejectedRegions)) {
+				rrs.transferRejected(token);
+			}
+		}
+		schedule();
+	}
+
+	/** Whether a token for region is already on its way to dst */
+	public boolean isSending(long dst, String region) {
+		for (Pending t : unacked.values()) {
+			if (t.packet.dst != dst) {
+				continue;
+			}
+			for (ResRequest token : t.tokens) {
+				if (token.regionId.equals(region)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/** RTT estimate for a peer, kept with its neighbor table entry */
+	public RttEstimator rtt(long peer) {
+		return rrs.neighbors.rtt(peer);
+	}
+
+	/** Number of tokens awaiting an ACK */
+	public int inFlight() {
+		return unacked.size();
+	}
+
+	/** Stop retransmitting, e.g. when the service stops */
+	public void clear() {
+		handler.removeCallbacks(retransmitCheck);
+		unacked.clear();
+	}
+
+	private boolean refused(ResRequest token, BitSet rejectedRegions) {
+		if (rejectedRegions == null) {
+			return false;
+		}
+		int i = rrs.regionIndex.indexOf(token.regionId);
+		return i >= 0 && rejectedRegions.get(i);
+	}
+
+	private static String regions(Pending t) {
+		StringBuilder sb = new StringBuilder();
+		for (ResRequest token : t.tokens) {
+			sb.append(sb.length() == 0 ? "" : ",").append(token.regionId);
+		}
+		return sb.toString();
+	}
+
+	private void transmit(Pending t, long now) {
+		t.transmissions++;
+		t.lastSent = now;
+		rrs.sendPacket(t.packet);
+	}
+
+	/** Wake up when the earliest retransmission timer expires */
+	private void schedule() {
+		handler.removeCallbacks(retransmitCheck);
+		if (unacked.isEmpty()) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		long next = Long.MAX_VALUE;
+		for (Pending t : unacked.values()) {
+			next = Math.min(next, t.lastSent + t.timeout);
+		}
+		handler.postDelayed(retransmitCheck, Math.max(0, next - now));
+	}
+
+	private final Runnable retransmitCheck = new Runnable() {
+		public void run() {
+			long now = System.currentTimeMillis();
+			for (Iterator<Pending> it = unacked.values().iterator(); it
+					.hasNext();) {
+				Pending t = it.next();
+				if (t.lastSent + t.timeout > now) {
+					continue;
+				}
+				if (t.transmissions >= Globals.ADHOC_MAX_TRANSMISSIONS) {
+					it.remove();
+					rrs.log(String
+							.format("Token(s) %s to %d never ACKed after %d transmissions",
+									regions(t), t.packet.dst,
+									t.transmissions));
+					for (ResRequest token : t.tokens) {
+						rrs.transferFailed(token);
+					}
+					continue;
+				}
+				t.timeout = Math.min(Globals.ADHOC_MAX_RTO, t.timeout * 2);
+				transmit(t, now);
+			}
+			schedule();
+		}
+	};
+}
@@ -1,23 +1,19 @@
 package edu.mit.csail.jasongao.roadrunner;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.ObjectOutput;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
-import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -29,9 +25,11 @@ import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.location.LocationProvider;
+import android.net.wifi.WifiManager;
 import android.os.AsyncTask;
 import android.os.Binder;
 import android.os.Bundle;
+import android.os.Environment;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
@@ -44,6 +42,7 @@ public class RoadRunnerService extends Service implements LocationListener {
 
 	// Android system
 	PowerManager.WakeLock wl = null;
+	WifiManager.MulticastLock ml = null;
 	LocationManager lm;
 	TelephonyManager tm;
 	TextToSpeech mTts = null;
@@ -56,15 +55,39 @@ public class RoadRunnerService extends Service implements LocationListener {
 
 	// Communication threads
 	private AdhocPacketThread aat;
+	private AdhocSenderThread sender;
+	private ReliableTransfer transfers;
+	private AnnounceScheduler announcer;
+	private DeadlineScheduler deadlines;
 	private AdhocServerThread ast;
 
+	/** Keep-alive connections for ResRequestTask and relayed GETs */
+	final CloudConnectionPool cloudPool = new CloudConnectionPool(this);
+
+	/** Non-blocking cloud requests, null unless CLOUD_NIO */
+	private CloudClient cloudClient;
+
 	/***********************************************
 	 * RoadRunner state
 	 ***********************************************/
 
-	/** TODO Nonces for idempotent UDP tokens */
+	/** Nonces for idempotent UDP tokens, numbered from 0 in each epoch */
 	private int nonce = 0;
-	private HashMap<Long, HashSet<Long>> noncesHeard;
+	private final int epoch = new Random().nextInt();
+	private NonceWindow noncesHeard;
+
+	/** Regions we refused from recent token packets, by verdictKey */
+	private Map<String, Set<String>> tokenVerdicts;
+
+	/** When we last asked a vehicle for each region, one vehicle at a time */
+	private Map<String, Long> requestsOutstanding;
+
+	/** Vehicles heard over adhoc and the regions they offer */
+	NeighborTable neighbors;
+
+	/** Delta encoding of our offers, and neighbors we need snapshots from */
+	private OfferDelta offerDelta;
+	private Set<Long> resyncsWanted;
 
 	private boolean adhocEnabled = false;
 	private boolean onDemand = false;
@@ -75,9 +98,10 @@ public class RoadRunnerService extends Service implements LocationListener {
 	 */
 	private long lastDataActivity = 0;
 
-	private List<Region> regions;
+	RegionIndex regionIndex;
+	private Region mCurrentRegion; // null when in FREE
 
-	private Location mLoc;
+	Location mLoc;
 	private String mRegion = "FREE";
 	private long mId = -1000;
 
@@ -95,6 +119,12 @@ public class RoadRunnerService extends Service implements LocationListener {
 	/** Pending GET RES_REQUESTS that can be sent to either cloud or to adhoc */
 	private Queue<ResRequest> getsPending;
 
+	/**
+	 * GETs on their way to the cloud, by region. A later GET for the same
+	 * region waits on this one's token instead of fetching a surplus one.
+	 */
+	private Map<String, ResRequest> getsInFlight;
+
 	/***********************************************
 	 * Queue helpers
 	 ***********************************************/
@@ -111,6 +141,48 @@ public class RoadRunnerService extends Service implements LocationListener {
 		return keys;
 	}
 
+	/** Region.index bits of the regions of the ResRequests in a Queue */
+	BitSet queueRegionBits(Queue<ResRequest> q) {
+		BitSet bits = new BitSet(regionIndex.size());
+		for (Iterator<ResRequest> it = q.iterator(); it.hasNext();) {
+			int i = regionIndex.indexOf(it.next().regionId);
+			if (i >= 0) {
+				bits.set(i);
+			}
+		}
+		return bits;
+	}
+
+	/** Region.index bits of region ids, skipping ids not in the index */
+	BitSet regionBits(Set<String> ids) {
+		BitSet bits = new BitSet(regionIndex.size());
+		for (String id : ids) {
+			int i = regionIndex.indexOf(id);
+			if (i >= 0) {
+				bits.set(i);
+			}
+		}
+		return bits;
+	}
+
+	/** Queue a GET, to go to the cloud at its hard deadline if still here */
+	void addPendingGet(ResRequest req) {
+		getsPending.add(req);
+		deadlines.add(req, getsPending);
+	}
+
+	/** Offer a reservation, to go back to the cloud at its hard deadline */
+	void addOffer(ResRequest req) {
+		offers.add(req);
+		deadlines.add(req, offers);
+	}
+
+	/** Hold a penalty reservation until its hard deadline */
+	void addPenalty(ResRequest req) {
+		penalties.add(req);
+		deadlines.add(req, penalties);
+	}
+
 	/** Removes a ResRequest from the Queue and returns it. Null if not found. */
 	public static ResRequest queuePoll(Queue<ResRequest> q, String rid) {
 		for (Iterator<ResRequest> it = q.iterator(); it.hasNext();) {
@@ -134,172 +206,224 @@ public class RoadRunnerService extends Service implements LocationListener {
 		public void handleMessage(Message msg) {
 			switch (msg.what) {
 			case ADHOC_PACKET_RECV:
-				if (!adhocEnabled) {
-					break;
-				}
 				AdhocPacket other = (AdhocPacket) msg.obj;
-
-				// filter out messages not addressed to us or broadcast
-				if (other.dst != -1 && other.dst != mId) {
-					break;
+				if (adhocEnabled) {
+					handleAdhocPacket(other);
+				}
+				// hand the packet back to the receive thread for reuse
+				if (aat != null) {
+					aat.recycle(other);
 				}
+				break;
+			}
+		}
+	};
 
-				long now = getTime();
-				log_nodisplay(String.format("Received UDP %s", other));
+	/** Key of a token packet in tokenVerdicts: its sender, epoch and nonce */
+	private static String verdictKey(AdhocPacket p) {
+		return p.src + "/" + p.epoch + "/" + p.nonce;
+	}
+
+	/** Process a packet from the adhoc receive thread */
+	private void handleAdhocPacket(AdhocPacket other) {
+		// filter out messages not addressed to us or broadcast
+		if (other.dst != -1 && other.dst != mId) {
+			return;
+		}
+
+		long now = getTime();
+		log_nodisplay(String.format("Received UDP %s", other));
+
+		if (other.type == AdhocPacket.TOKEN_ACK) {
+			// accept ACKs even if the link is degrading, else we re-offer
+			transfers.acked(other.src, other.nonce, other.rejected,
+					other.tokensRejected);
+			return;
+		}
+
+		if (other.triggerAnnounce && !offers.isEmpty()) {
+			adhocAnnounce(false); // no reply needed if we offer nothing
+		}
+
+		if (Globals.ADHOC_IFACE_NAME.equals("eth0")) {
+			if (!linkIsViableWiFi(mLoc, other)) {
+				return;
+			}
+		} else {
+			if (!linkIsViableDSRC(mLoc, other)) {
+				return;
+			}
+		}
 
-				if (other.triggerAnnounce) {
-					adhocAnnounce(false);
+		NeighborTable.Neighbor neighbor = neighbors.heard(other,
+				System.currentTimeMillis());
+		if (neighbor.packetsHeard == 1) {
+			announcer.reset(); // let the newcomer hear our offers soon
+		}
+
+		if (other.type == AdhocPacket.TOKEN_REQUEST) {
+			// Someone wants a token from us; give them it if possible. A
+			// repeated request while one is on its way gets nothing more.
+			if (transfers.isSending(other.src, other.region)) {
+				return;
+			}
+			ResRequest req = queuePoll(offers, other.region);
+			if (req != null) {
+				log(String
+						.format("Responding to GET request from %d with an offered reservation. Over UDP.",
+								other.src));
+				sendToken(req, other.src, false);
+			}
+
+		} else if (other.type == AdhocPacket.TOKEN_BUNDLE_REQUEST) {
+			// Someone wants several tokens; give them all we can spare
+			List<ResRequest> bundle = new ArrayList<ResRequest>();
+			for (int i = other.tokensWanted.nextSetBit(0); i >= 0; i = other.tokensWanted
+					.nextSetBit(i + 1)) {
+				String region = regionIndex.id(i);
+				if (transfers.isSending(other.src, region)) {
+					continue;
 				}
+				ResRequest req = queuePoll(offers, region);
+				if (req != null) {
+					bundle.add(req);
+				}
+			}
+			if (!bundle.isEmpty()) {
+				log(String
+						.format("Responding to bundle GET request from %d with %d offered reservations. Over UDP.",
+								other.src, bundle.size()));
+				sendTokens(bundle, other.src, false);
+			}
 
-				if (Globals.ADHOC_IFACE_NAME.equals("eth0")) {
-					if (!linkIsViableWiFi(mLoc, other)) {
-						break;
-					}
-				} else {
-					if (!linkIsViableDSRC(mLoc, other)) {
-						break;
+		} else if (other.type == AdhocPacket.TOKEN_SEND
+				|| other.type == AdhocPacket.TOKEN_BUNDLE_SEND) {
+			long udpStopTime = System.currentTimeMillis();
+			boolean fresh = noncesHeard.check(other.src, other.epoch,
+					other.nonce, udpStopTime);
+			List<ResRequest> tokens = (other.type == AdhocPacket.TOKEN_SEND) ? Collections
+					.singletonList(tokenOf(other)) : other.tokens;
+
+			// refuse tokens we no longer want, e.g. a late answer to a
+			// request someone else already filled, so the sender keeps
+			// them; copies get the same answer as the first
+			String key = verdictKey(other);
+			Set<String> refused = tokenVerdicts.get(key);
+			if (fresh) {
+				refused = new HashSet<String>();
+				Set<String> wanted = queueKeySet(getsPending);
+				for (ResRequest t : tokens) {
+					if (!wanted.remove(t.regionId)) {
+						refused.add(t.regionId);
 					}
 				}
+				tokenVerdicts.put(key, refused);
+			}
 
-				if (other.type == AdhocPacket.TOKEN_REQUEST) {
-					// Someone wants a token from us; give them it if possible
-					ResRequest req = queuePoll(offers, other.region);
-					if (req != null) {
-						AdhocPacket p = new AdhocPacket(mId, mLoc);
-						p.dst = other.src;
-						p.type = AdhocPacket.TOKEN_SEND;
-						p.tokenString = req.tokenString;
-						p.region = req.regionId;
-						p.signature = req.signature;
-						p.issued = req.issued;
-						p.expires = req.expires;
-
-						// Idempotently send over UDP a few times
-						log(String
-								.format("Responding to GET request from %d with an offered reservation. Over UDP.",
-										other.src));
-						p.nonce = nonce++;
-						new SendPacketsTask().execute(p, p, p);
-					}
+			// ACK every copy, the sender retransmits until it hears one. A
+			// copy whose verdict we no longer have wasn't taken this time,
+			// so reject it all and let the sender keep the tokens.
+			AdhocPacket ack = new AdhocPacket(mId, mLoc);
+			ack.type = AdhocPacket.TOKEN_ACK;
+			ack.dst = other.src;
+			ack.nonce = other.nonce;
+			if (refused == null) {
+				ack.rejected = true;
+			} else if (other.type == AdhocPacket.TOKEN_SEND) {
+				ack.rejected = !refused.isEmpty();
+			} else if (!refused.isEmpty()) {
+				ack.tokensRejected = regionBits(refused);
+			}
+			sendPacket(ack);
 
-				} else if (other.type == AdhocPacket.TOKEN_SEND) {
-					long udpStopTime = System.currentTimeMillis();
-					// Check if already received this packet copy
-					if (!noncesHeard.containsKey(other.src)) {
-						noncesHeard.put(other.src, new HashSet<Long>());
-					}
+			// Check if already received this packet copy
+			if (!fresh) {
+				// Already heard this packet, so ignore
+				log("Nonce seen before, ignoring duplicate token sent.");
+				return;
+			} else {
+				long udpLatency = udpStopTime - udpStartTime;
+				log(String
+						.format("Nonce NOT seen before, receiving token sent, UDP token transfer round-trip latency %d ms",
+								udpLatency));
+			}
 
-					if (noncesHeard.get(other.src).contains(other.nonce)) {
-						// Already heard this packet, so ignore
-						log("Nonce seen before, ignoring duplicate token sent.");
-						break;
-					} else {
-						long udpLatency = udpStopTime - udpStartTime;
-						log(String
-								.format("Nonce NOT seen before, receiving token sent, UDP token transfer round-trip latency %d ms",
-										udpLatency));
-						noncesHeard.get(other.src).add(other.nonce);
-					}
+			// Other car sent tokens to us
+			for (ResRequest t : tokens) {
+				if (refused.contains(t.regionId)) {
+					log(String.format(
+							"Rejected token for %s %s by %d, not wanted",
+							t.regionId, other.pushed ? "pushed" : "sent",
+							other.src));
+				} else {
+					tokenReceived(t);
+				}
+			}
 
-					// Other car sent a token to us
-					ResRequest req = queuePoll(getsPending, other.region);
-					if (req != null) {
-						// It was a pending GET, so add to our in-use store
-						req.done = true;
-						req.completed = getTime();
-						log(String
-								.format("GET request for %s completed after %d ms Over UDP",
-										req.regionId, req.completed
-												- req.created));
-						/* Use reservation if we don't have it, otherwise extras */
-						if (!reservationsInUse.containsKey(req.regionId)) {
-							reservationsInUse.put(req.regionId, req);
-							log(String.format("Added to reservationsInUse: %s",
-									reservationsInUse));
-						} else {
-							req.hardDeadline = req.completed
-									+ Globals.REQUEST_DIRECT_PUT_DEADLINE_FROM_NOW;
-							offers.add(req);
-							log(String.format("Added to offers: %s",
-									req.regionId));
-						}
-					} else {
-						req = new ResRequest(mId, ResRequest.RES_GET,
-								other.region);
-						req.done = true;
-						req.completed = getTime();
-						req.tokenString = other.tokenString;
-						req.signature = other.signature;
-						String[] parts = other.tokenString.split(" ");
-						req.issued = Long.parseLong(parts[1]);
-						req.expires = Long.parseLong(parts[2]);
-						req.hardDeadline = req.completed
-								+ Globals.REQUEST_DIRECT_PUT_DEADLINE_FROM_NOW;
-						offers.add(req);
-
-						log(String.format(
-								"%s sent unwanted token for %s Over UDP",
-								other.src, req.regionId));
-
-						log(String.format("Added to offers: %s", req.regionId));
-					}
+		} else if (other.type == AdhocPacket.ANNOUNCE) {
+			if (other.resync == mId) {
+				offerDelta.requestSnapshot();
+				announcer.reset();
+			}
+			if (!neighbors.applyOffers(neighbor, other)) {
+				log_nodisplay(String.format(
+						"Missed offer snapshot %d from %d, asking for it",
+						other.offersBase, other.src));
+				resyncsWanted.add(other.src);
+				announcer.reset();
+			}
 
-				} else if (other.type == AdhocPacket.ANNOUNCE) {
-					for (Iterator<ResRequest> it = getsPending.iterator(); it
-							.hasNext();) {
-						ResRequest req = it.next();
-
-						// try to get token from other vehicle?
-						if (other.tokensOffered.contains(req.regionId)) {
-							if (Globals.ADHOC_UDP_ONLY) { // UDP pathway
-								// Send a TOKEN_REQUEST
-								AdhocPacket p = new AdhocPacket(mId, mLoc);
-								p.type = AdhocPacket.TOKEN_REQUEST;
-								p.region = req.regionId;
-								log(String
-										.format("Other vehicle %d offers %s, I want %s, GET %s Over UDP",
-												other.src, other.tokensOffered,
-												queueKeySet(getsPending),
-												req.regionId));
-
-								udpStartTime = System.currentTimeMillis();
-								new SendPacketsTask().execute(p);
-							} else { // TCP pathway
-
-								log(String
-										.format("Other vehicle %d offers %s, I want %s, GET %s",
-												other.src, other.tokensOffered,
-												queueKeySet(getsPending),
-												req.regionId));
-
-								it.remove(); // ConcurrentModificationException?
-								new ResRequestTask().execute(req, "192.168.42."
-										+ other.src);
-							}
+			// push offers the other vehicle wants straight away
+			if (Globals.ADHOC_PUSH_ENABLED && other.tokensWanted != null
+					&& !other.tokensWanted.isEmpty()) {
+				pushTokens(other.src, other.tokensWanted);
+			}
 
+			// regions we want that the other vehicle offers
+			BitSet matches = queueRegionBits(getsPending);
+			matches.and(neighbor.offers);
+			if (Globals.ADHOC_UDP_ONLY && !matches.isEmpty()) {
+				// one request for everything this vehicle can give us
+				requestTokens(matches, neighbor);
+			}
+			if ((!Globals.ADHOC_UDP_ONLY && !matches.isEmpty())
+					|| Globals.RELAY_ENABLED) {
+				for (Iterator<ResRequest> it = getsPending.iterator(); it
+						.hasNext();) {
+					ResRequest req = it.next();
+					int index = regionIndex.indexOf(req.regionId);
+
+					// try to get token from other vehicle over TCP?
+					if (index >= 0 && matches.get(index)) {
+						if (!Globals.ADHOC_UDP_ONLY) {
+							log(String.format(
+									"Other vehicle %d offers %s, I want %s, GET %s",
+									other.src, neighbor.offers,
+									queueKeySet(getsPending), req.regionId));
+							it.remove(); // ConcurrentModificationException?
+							requestToken(req, neighbor);
 						}
+					}
 
-						// try to relay through other vehicle?
-						// DEPRECATED: doesn't work well currently
-						else if (Globals.RELAY_ENABLED
-								&& other.dataActivity != TelephonyManager.DATA_ACTIVITY_DORMANT
-								&& req.softDeadline < now) {
-							log(String
-									.format("Request soft deadline %d expired, relaying through vehicle %d to cloud: %s",
-											req.softDeadline, other.src, req));
-							getsPending.remove(req);
-							new ResRequestTask().execute(req, "192.168.42."
-									+ other.src);
-						}
+					// try to relay through other vehicle?
+					// DEPRECATED: doesn't work well currently
+					else if (Globals.RELAY_ENABLED
+							&& other.dataActivity != TelephonyManager.DATA_ACTIVITY_DORMANT
+							&& req.softDeadline < now) {
+						log(String
+								.format("Request soft deadline %d expired, relaying through vehicle %d to cloud: %s",
+										req.softDeadline, other.src, req));
+						getsPending.remove(req);
+						new ResRequestTask().execute(req, "192.168.42."
+								+ other.src);
 					}
 				}
-
-				updateDisplay();
-
-				break;
 			}
 		}
-	};
+
+		announcer.check();
+		updateDisplay();
+	}
 
 	/**
 	 * Determine whether two vehicle's location fixes indicate that a DSRC UDP
@@ -420,7 +544,7 @@ public class RoadRunnerService extends Service implements LocationListener {
 		}
 
 		float distance = v1.distanceTo(v2);
-		long threshold = 250;
+		long threshold = Globals.ADHOC_DSRC_RANGE;
 		boolean viable = (distance < threshold);
 
 		log_nodisplay(String.format(
@@ -449,7 +573,7 @@ public class RoadRunnerService extends Service implements LocationListener {
 		}
 
 		float distance = v1.distanceTo(v2);
-		long threshold = 70;
+		long threshold = Globals.ADHOC_WIFI_RANGE;
 		boolean viable = (distance < threshold);
 
 		log_nodisplay(String.format(
@@ -459,6 +583,12 @@ public class RoadRunnerService extends Service implements LocationListener {
 		return viable;
 	}
 
+	/** Range in meters of the adhoc interface in use */
+	int linkRange() {
+		return Globals.ADHOC_IFACE_NAME.equals("eth0") ? Globals.ADHOC_WIFI_RANGE
+				: Globals.ADHOC_DSRC_RANGE;
+	}
+
 	/**
 	 * Determine whether two vehicle's location fixes indicate that a WiFi TCP
 	 * link can be sustained over the next Globals.LINK_LIFETIME_THRESHOLD secs
@@ -569,93 +699,11 @@ public class RoadRunnerService extends Service implements LocationListener {
 
 			long startTime = getTime();
 
-			Socket s = new Socket();
 			try {
-				s.connect(new InetSocketAddress(mHost, Globals.CLOUD_PORT),
-						Globals.CLOUD_SOCKET_TIMEOUT);
-
-				InputStream in = s.getInputStream();
-				OutputStream out = s.getOutputStream();
-
-				BufferedReader reader = new BufferedReader(
-						new InputStreamReader(in));
-				Writer writer = new OutputStreamWriter(out);
-
-				String response;
-
-				// Dispatch request correctly
-				switch (req.type) {
-				case ResRequest.RES_GET:
-					writer.write(String.format("GET %d %s\r\n", mId,
-							req.regionId));
-					writer.flush();
-
-					response = reader.readLine();
-					log("Response: " + response);
-					if ("GET 200 OK".equals(response)) {
-						req.tokenString = reader.readLine();
-						req.signature = reader.readLine();
-						String[] parts = req.tokenString.split(" ");
-						req.issued = Long.parseLong(parts[1]);
-						req.expires = Long.parseLong(parts[2]);
-
-						log_nodisplay(String
-								.format("Received:\nTOKEN %s\nSIG %s\nISSUED: %d\nEXPIRES: %d",
-										req.tokenString, req.signature,
-										req.issued, req.expires));
-
-						// TODO verify signature
-						if (!req.tokenIsValid()) {
-							// log("Token signature verification FAILED!");
-							// failed to verify token, put back into pending q?
-						}
-
-						req.done = true;
-					} else {
-						log("GET request failed: " + response);
-						req.done = false;
-					}
-					break;
-				case ResRequest.RES_PUT:
-					writer.write(String.format("PUT %d %s\r\n", mId,
-							req.regionId));
-					writer.flush();
-
-					response = reader.readLine();
-					log("Response: " + response);
-					if ("PUT 200 OK".equals(response)) {
-						req.done = true;
-					} else {
-						log("PUT request failed: " + response);
-						req.done = false;
-					}
-					break;
-				case ResRequest.DEBUG_RESET:
-					writer.write(String.format("DEBUG-RESET %d %s\r\n", mId,
-							req.regionId));
-					writer.flush();
-					log("Response: " + reader.readLine());
-					req.done = true;
-					break;
-				}
-
+				readResponse(req, cloudPool.exchange(mHost, String.format(
+						"%s %d %s", methodOf(req), mId, req.regionId)));
 			} catch (Exception e) {
 				log("Unexpected exception: " + e.toString());
-			} finally {
-				try {
-					s.shutdownOutput();
-				} catch (Exception e) {
-				}
-
-				try {
-					s.shutdownInput();
-				} catch (Exception e) {
-				}
-
-				try {
-					s.close();
-				} catch (Exception e) {
-				}
 			}
 
 			long stopTime = getTime();
@@ -684,65 +732,287 @@ public class RoadRunnerService extends Service implements LocationListener {
 		}
 
 		protected void onPostExecute(ResRequest req) {
-			/* GET */
+			requestCompleted(req);
+		}
+	}
+
+	/**
+	 * Send several GETs or several PUTs to a TCP/IP endpoint in one MGET or
+	 * MPUT exchange, see CloudConnectionPool. Requests that got a response
+	 * complete even if others in the batch didn't.
+	 */
+	public class ResBatchTask extends
+			AsyncTask<Object, Integer, List<ResRequest>> {
+
+		@Override
+		protected List<ResRequest> doInBackground(Object... params) {
+			@SuppressWarnings("unchecked")
+			List<ResRequest> reqs = (List<ResRequest>) params[0];
+			String mHost = (String) params[1];
+
+			long startTime = getTime();
+
+			List<String> regionIds = new ArrayList<String>();
+			for (ResRequest req : reqs) {
+				regionIds.add(req.regionId);
+			}
+			String method = methodOf(reqs.get(0));
+			List<List<String>> responses = cloudPool.exchangeBatch(mHost,
+					method, mId, regionIds);
+			for (int i = 0; i < reqs.size(); i++) {
+				ResRequest req = reqs.get(i);
+				if (responses.get(i) == null) {
+					// failed; clear done, which a PUT kept from its GET
+					req.done = false;
+					continue;
+				}
+				readResponse(req, responses.get(i));
+			}
+
+			long stopTime = getTime();
+
+			log(String
+					.format("%s batch request for %s on %s network access completed in %d ms",
+							method, regionIds, mHost, stopTime - startTime));
+
+			// Update last cellular access
+			myHandler.post(updateLastDataActivity);
+
+			return reqs;
+		}
+
+		protected void onPostExecute(List<ResRequest> reqs) {
+			for (ResRequest req : reqs) {
+				requestCompleted(req);
+			}
+		}
+	}
+
+	/**
+	 * Send requests of one type to the cloud, batched if there are several
+	 * and the cloud takes batches, else in parallel. GETs for a region we
+	 * already hold or have in flight are dropped, the rest are recorded in
+	 * getsInFlight until they complete.
+	 */
+	private void sendToCloud(List<ResRequest> reqs) {
+		List<ResRequest> send = new ArrayList<ResRequest>();
+		for (ResRequest req : reqs) {
 			if (req.type == ResRequest.RES_GET) {
-				/* GET SUCCESSFUL */
-				if (req.done) {
-					req.completed = getTime();
+				if (getsInFlight.containsKey(req.regionId)
+						|| reservationsInUse.containsKey(req.regionId)) {
 					log(String.format(
-							"GET request for %s completed after %d ms",
-							req.regionId, req.completed - req.created));
-					/* Use reservation if we don't have it, otherwise extras */
-					if (!reservationsInUse.containsKey(req.regionId)) {
-						reservationsInUse.put(req.regionId, req);
-						log(String.format("Added to reservationsInUse: %s",
-								reservationsInUse));
+							"GET for %s already held or in flight, coalesced",
+							req.regionId));
+					continue;
+				}
+				getsInFlight.put(req.regionId, req);
+			}
+			send.add(req);
+		}
+		dispatchToCloud(send);
+	}
+
+	private void dispatchToCloud(List<ResRequest> reqs) {
+		if (reqs.isEmpty()) {
+			return;
+		}
+		if (cloudClient != null && cloudClient.supports(Globals.CLOUD_HOST)) {
+			sendAsync(reqs, Globals.CLOUD_HOST);
+		} else if (reqs.size() > 1
+				&& cloudPool.isKnownFramed(Globals.CLOUD_HOST)) {
+			new ResBatchTask().execute(reqs, Globals.CLOUD_HOST);
+		} else {
+			// one request per connection, so at least send them in parallel
+			for (ResRequest req : reqs) {
+				new ResRequestTask().execute(req, Globals.CLOUD_HOST);
+			}
+		}
+	}
+
+	/**
+	 * Send requests of one type to host through the non-blocking client and
+	 * complete them on the main thread. A host that turns out not to frame
+	 * responses gets them again through the blocking tasks.
+	 */
+	private void sendAsync(final List<ResRequest> reqs, final String host) {
+		List<String> regionIds = new ArrayList<String>();
+		for (ResRequest req : reqs) {
+			regionIds.add(req.regionId);
+		}
+		final String method = methodOf(reqs.get(0));
+		final long startTime = getTime();
+
+		CloudFuture f = cloudClient.send(host,
+				CloudConnectionPool.requestLine(method, mId, regionIds),
+				reqs.size(), Globals.CLOUD_READ_TIMEOUT);
+		f.addListener(new CloudFuture.Listener() {
+			public void completed(CloudFuture f) {
+				if (f.error() instanceof CloudClient.UnframedException) {
+					dispatchToCloud(reqs);
+					return;
+				}
+
+				if (f.error() != null) {
+					log("Unexpected exception: " + f.error().toString());
+				}
+				// a failed batch still completes the regions answered
+				List<List<String>> responses = f.responses();
+				int answered = (responses != null) ? responses.size() : 0;
+				for (int i = 0; i < reqs.size(); i++) {
+					if (i < answered) {
+						readResponse(reqs.get(i), responses.get(i));
 					} else {
-						req.hardDeadline = req.completed
-								+ Globals.REQUEST_DIRECT_PUT_DEADLINE_FROM_NOW;
-						offers.add(req);
-						log(String.format("Added to offers: %s", req.regionId));
+						// failed; clear done, which a PUT kept from its GET
+						reqs.get(i).done = false;
 					}
 				}
-				/* GET FAILED */
-				else {
-					log(String
-							.format("GET request on %s failed, adding back to pending queue.",
-									req.regionId));
-					// reset deadlines
-					long now = getTime();
-					req.softDeadline = now
-							+ Globals.REQUEST_RELAY_GET_DEADLINE_FROM_NOW;
-					req.hardDeadline = now
-							+ Globals.REQUEST_DIRECT_GET_DEADLINE_FROM_NOW;
-					getsPending.add(req);
+				log(String
+						.format("%s request for %s on %s network access completed in %d ms",
+								method, f.request, host, getTime()
+										- startTime));
+
+				lastDataActivity = getTime();
+				for (ResRequest req : reqs) {
+					requestCompleted(req);
 				}
 			}
-			/* PUT */
-			else if (req.type == ResRequest.RES_PUT) {
-				/* PUT SUCCESSFUL */
-				if (req.done) {
-					req.completed = getTime();
-					log(String.format(
-							"PUT request for %s completed after %d ms",
-							req.regionId, req.completed - req.created));
+		}, myHandler);
+	}
+
+	/** Protocol method for a request */
+	private static String methodOf(ResRequest req) {
+		switch (req.type) {
+		case ResRequest.RES_GET:
+			return "GET";
+		case ResRequest.RES_PUT:
+			return "PUT";
+		default:
+			return "DEBUG-RESET";
+		}
+	}
+
+	/**
+	 * Fill in a request from the endpoint's response to it. A malformed
+	 * response fails the request.
+	 */
+	private void readResponse(ResRequest req, List<String> response) {
+		try {
+			parseResponse(req, response);
+		} catch (RuntimeException e) {
+			log(String.format("Bad response to %s request for %s: %s",
+					methodOf(req), req.regionId, e));
+			req.done = false;
+		}
+	}
+
+	private void parseResponse(ResRequest req, List<String> response) {
+		String status = response.get(0);
+		log("Response: " + status);
+
+		switch (req.type) {
+		case ResRequest.RES_GET:
+			if ("GET 200 OK".equals(status) && response.size() >= 3) {
+				req.tokenString = response.get(1);
+				req.signature = response.get(2);
+				String[] parts = req.tokenString.split(" ");
+				req.issued = Long.parseLong(parts[1]);
+				req.expires = Long.parseLong(parts[2]);
+
+				log_nodisplay(String
+						.format("Received:\nTOKEN %s\nSIG %s\nISSUED: %d\nEXPIRES: %d",
+								req.tokenString, req.signature, req.issued,
+								req.expires));
+
+				// TODO verify signature
+				if (!req.tokenIsValid()) {
+					// log("Token signature verification FAILED!");
+					// failed to verify token, put back into pending q?
 				}
-				/* PUT FAILED */
-				else {
-					log(String.format(
-							"PUT request on %s failed, adding back to offers.",
-							req.regionId));
-					// Reset request time and type
-					long now = getTime();
-					req.hardDeadline = now
+
+				req.done = true;
+			} else {
+				log("GET request failed: " + status);
+				req.done = false;
+			}
+			break;
+		case ResRequest.RES_PUT:
+			if ("PUT 200 OK".equals(status)) {
+				req.done = true;
+			} else {
+				log("PUT request failed: " + status);
+				req.done = false;
+			}
+			break;
+		case ResRequest.DEBUG_RESET:
+			req.done = true;
+			break;
+		}
+	}
+
+	/** Handle a finished cloud or peer request, on the main thread */
+	private void requestCompleted(ResRequest req) {
+		/* GET */
+		if (req.type == ResRequest.RES_GET) {
+			if (getsInFlight.get(req.regionId) == req) {
+				getsInFlight.remove(req.regionId);
+			}
+			/* GET SUCCESSFUL */
+			if (req.done) {
+				req.completed = getTime();
+				log(String.format(
+						"GET request for %s completed after %d ms",
+						req.regionId, req.completed - req.created));
+				/* Use reservation if we don't have it, otherwise extras */
+				if (!reservationsInUse.containsKey(req.regionId)) {
+					reservationsInUse.put(req.regionId, req);
+					log(String.format("Added to reservationsInUse: %s",
+							reservationsInUse));
+				} else {
+					req.hardDeadline = req.completed
 							+ Globals.REQUEST_DIRECT_PUT_DEADLINE_FROM_NOW;
-					req.type = ResRequest.RES_GET;
-					offers.add(req);
+					addOffer(req);
+					log(String.format("Added to offers: %s", req.regionId));
 				}
 			}
-
-			updateDisplay();
+			/* GET FAILED */
+			else {
+				log(String
+						.format("GET request on %s failed, adding back to pending queue.",
+								req.regionId));
+				// reset deadlines
+				long now = getTime();
+				req.softDeadline = now
+						+ Globals.REQUEST_RELAY_GET_DEADLINE_FROM_NOW;
+				req.hardDeadline = now
+						+ Globals.REQUEST_DIRECT_GET_DEADLINE_FROM_NOW;
+				addPendingGet(req);
+			}
+		}
+		/* PUT */
+		else if (req.type == ResRequest.RES_PUT) {
+			/* PUT SUCCESSFUL */
+			if (req.done) {
+				req.completed = getTime();
+				log(String.format(
+						"PUT request for %s completed after %d ms",
+						req.regionId, req.completed - req.created));
+			}
+			/* PUT FAILED */
+			else {
+				log(String.format(
+						"PUT request on %s failed, adding back to offers.",
+						req.regionId));
+				// Reset request time and type
+				long now = getTime();
+				req.hardDeadline = now
+						+ Globals.REQUEST_DIRECT_PUT_DEADLINE_FROM_NOW;
+				req.type = ResRequest.RES_GET;
+				addOffer(req);
+			}
 		}
+
+		announcer.check();
+		updateDisplay();
 	}
 
 	/***********************************************
@@ -755,80 +1025,46 @@ public class RoadRunnerService extends Service implements LocationListener {
 		}
 	};
 
-	/** Periodic check for penalty reservations to clear */
-	private Runnable penaltyCheck = new Runnable() {
-		public void run() {
-			long now = getTime();
-
-			// send timed-out PUT requests to cloud
-			for (Iterator<ResRequest> it = penalties.iterator(); it.hasNext();) {
-				ResRequest req = it.next();
-				if (req.hardDeadline < now) {
-					log(String.format(
-							"Penalty reservation expired, removing %s",
-							req.hardDeadline, req));
-					it.remove();
-				}
+	/**
+	 * Called by the DeadlineScheduler with requests whose hard deadline has
+	 * passed, already taken out of store
+	 */
+	void deadlinesExpired(Queue<ResRequest> store, List<ResRequest> expired) {
+		if (store == getsPending) {
+			// send expired requests directly to cloud, in one batch
+			for (ResRequest req : expired) {
+				log(String
+						.format("Request hard deadline %d expired, direct to cloud: %s",
+								req.hardDeadline, req));
 			}
-
-			myHandler.postDelayed(this, Globals.REQUEST_PENALTY_CHECK_PERIOD);
-		}
-	};
-
-	/** Periodic check for GET requests that need to be sent to the cloud */
-	private Runnable cloudDirectGetRequestCheck = new Runnable() {
-		public void run() {
-			long now = getTime();
-
-			// send expired requests directly to cloud
-			// for (ResRequest resRequest : getsPending) {
-			for (Iterator<ResRequest> it = getsPending.iterator(); it.hasNext();) {
-				ResRequest req = it.next();
-				if (req.hardDeadline < now) {
-					log(String
-							.format("Request hard deadline %d expired, direct to cloud: %s",
-									req.hardDeadline, req));
-					it.remove();
-					new ResRequestTask().execute(req, Globals.CLOUD_HOST);
-				}
+			sendToCloud(expired);
+		} else if (store == offers) {
+			// send timed-out PUT requests to cloud, in one batch
+			for (ResRequest req : expired) {
+				log(String
+						.format("PUT request hard deadline %d expired, direct to cloud: %s",
+								req.hardDeadline, req));
+				req.type = ResRequest.RES_PUT;
 			}
-
-			myHandler.postDelayed(this, Globals.REQUEST_DEADLINE_CHECK_PERIOD);
-		}
-	};
-
-	/** Periodic check for PUT that need to be sent to the cloud */
-	private Runnable cloudDirectPutRequestCheck = new Runnable() {
-		public void run() {
-			long now = getTime();
-
-			// send timed-out PUT requests to cloud
-			for (Iterator<ResRequest> it = offers.iterator(); it.hasNext();) {
-				ResRequest req = it.next();
-				if (req.hardDeadline < now) {
-					log(String
-							.format("PUT request hard deadline %d expired, direct to cloud: %s",
-									req.hardDeadline, req));
-					it.remove();
-					req.type = ResRequest.RES_PUT;
-					new ResRequestTask().execute(req, Globals.CLOUD_HOST);
-				}
+			sendToCloud(expired);
+		} else if (store == penalties) {
+			for (ResRequest req : expired) {
+				log(String.format(
+						"Penalty reservation expired, removing %s", req));
 			}
-
-			myHandler.postDelayed(this, Globals.REQUEST_DEADLINE_CHECK_PERIOD);
 		}
-	};
+	}
 
 	/***********************************************
 	 * Adhoc announcements
 	 ***********************************************/
 
-	private void adhocAnnounce(boolean triggerAnnounce_) {
+	void adhocAnnounce(boolean triggerAnnounce_) {
 		if (!this.adhocEnabled) {
 			return;
 		}
 
-		// myHandler.removeCallbacks(adhocAnnounceR);
+		// announcer.stop();
 
 		AdhocPacket p = new AdhocPacket(mId, mLoc);
 
@@ -840,18 +1076,228 @@ public class RoadRunnerService extends Service implements LocationListener {
 			p.dataActivity = TelephonyManager.DATA_ACTIVITY_DORMANT;
 		}
 
-		// AdhocPacket what tokens we are offering
-		p.tokensOffered = queueKeySet(this.offers);
+		// AdhocPacket what tokens we are offering, as a delta if possible
+		offerDelta.fill(p, queueRegionBits(this.offers));
+
+		// advertise demand so holders can push tokens to us
+		if (Globals.ADHOC_PUSH_ENABLED && !this.getsPending.isEmpty()) {
+			p.tokensWanted = queueRegionBits(this.getsPending);
+		}
+
+		// ask one neighbor that we lost track of for a full snapshot
+		Iterator<Long> it = resyncsWanted.iterator();
+		if (it.hasNext()) {
+			p.resync = it.next();
+			it.remove();
+		}
 
 		p.triggerAnnounce = triggerAnnounce_;
 
-		new SendPacketsTask().execute(p);
+		sendPacket(p);
+		announcer.sent(System.currentTimeMillis());
+	}
+
+	/** Hash of the state our ANNOUNCEs carry, to notice changes */
+	int announceState() {
+		return 31 * queueKeySet(this.offers).hashCode()
+				+ queueKeySet(this.getsPending).hashCode();
+	}
+
+	/** Whether we have offers or pending GETs worth announcing about */
+	boolean hasAdhocState() {
+		return !this.offers.isEmpty() || !this.getsPending.isEmpty();
 	}
 
-	/** Periodic status announcements over adhoc */
-	private Runnable adhocAnnounceR = new Runnable() {
+	/**
+	 * Send an offered token to dst until ACKed. The token is out of the offer
+	 * store while in flight, so it can't be given to anyone else; it comes
+	 * back if dst never ACKs or rejects it.
+	 */
+	private void sendToken(ResRequest req, long dst, boolean pushed) {
+		AdhocPacket p = new AdhocPacket(mId, mLoc);
+		p.dst = dst;
+		p.type = AdhocPacket.TOKEN_SEND;
+		p.tokenString = req.tokenString;
+		p.region = req.regionId;
+		p.signature = req.signature;
+		p.issued = req.issued;
+		p.expires = req.expires;
+		p.pushed = pushed;
+		p.nonce = nonce++;
+		transfers.send(p, req);
+	}
+
+	/**
+	 * Send offered tokens to dst until ACKed, bundled into as few messages as
+	 * fit in ADHOC_MAX_MESSAGE_SIZE. The sender fragments any bundle larger
+	 * than one datagram.
+	 */
+	private void sendTokens(List<ResRequest> tokens, long dst, boolean pushed) {
+		List<ResRequest> bundle = new ArrayList<ResRequest>();
+		int size = AdhocPacketCodec.HEADER_SIZE + 2;
+		for (ResRequest t : tokens) {
+			int entrySize = AdhocPacketCodec.bundleEntrySize(t);
+			if (!bundle.isEmpty()
+					&& size + entrySize > Globals.ADHOC_MAX_MESSAGE_SIZE) {
+				sendBundle(bundle, dst, pushed);
+				bundle = new ArrayList<ResRequest>();
+				size = AdhocPacketCodec.HEADER_SIZE + 2;
+			}
+			bundle.add(t);
+			size += entrySize;
+		}
+		sendBundle(bundle, dst, pushed);
+	}
+
+	private void sendBundle(List<ResRequest> bundle, long dst, boolean pushed) {
+		if (bundle.size() == 1) {
+			sendToken(bundle.get(0), dst, pushed);
+			return;
+		}
+		AdhocPacket p = new AdhocPacket(mId, mLoc);
+		p.dst = dst;
+		p.type = AdhocPacket.TOKEN_BUNDLE_SEND;
+		p.tokens = bundle;
+		p.pushed = pushed;
+		p.nonce = nonce++;
+		transfers.send(p, bundle);
+	}
+
+	/** The token a TOKEN_SEND carries */
+	private ResRequest tokenOf(AdhocPacket p) {
+		ResRequest t = new ResRequest(p.src, ResRequest.RES_GET, p.region);
+		t.issued = p.issued;
+		t.expires = p.expires;
+		t.tokenString = p.tokenString;
+		t.signature = p.signature;
+		return t;
+	}
+
+	/** Take a token another vehicle sent us for one of our pending GETs */
+	private void tokenReceived(ResRequest token) {
+		requestsOutstanding.remove(token.regionId);
+		ResRequest req = queuePoll(getsPending, token.regionId);
+		if (req == null) {
+			return;
+		}
+
+		// It was a pending GET, so add to our in-use store
+		req.done = true;
+		req.completed = getTime();
+		log(String.format("GET request for %s completed after %d ms Over UDP",
+				req.regionId, req.completed - req.created));
+		/* Use reservation if we don't have it, otherwise extras */
+		if (!reservationsInUse.containsKey(req.regionId)) {
+			reservationsInUse.put(req.regionId, req);
+			log(String.format("Added to reservationsInUse: %s",
+					reservationsInUse));
+		} else {
+			req.hardDeadline = req.completed
+					+ Globals.REQUEST_DIRECT_PUT_DEADLINE_FROM_NOW;
+			addOffer(req);
+			log(String.format("Added to offers: %s", req.regionId));
+		}
+	}
+
+	/** Push the offers among the wanted regions to vehicle dst */
+	private void pushTokens(long dst, BitSet wanted) {
+		BitSet matches = queueRegionBits(offers);
+		matches.and(wanted);
+		List<ResRequest> bundle = new ArrayList<ResRequest>();
+		for (int i = matches.nextSetBit(0); i >= 0; i = matches
+				.nextSetBit(i + 1)) {
+			String region = regionIndex.id(i);
+			if (transfers.isSending(dst, region)) {
+				continue; // already on its way
+			}
+			ResRequest req = queuePoll(offers, region);
+			if (req != null) {
+				bundle.add(req);
+			}
+		}
+		if (!bundle.isEmpty()) {
+			log(String.format(
+					"Vehicle %d wants %d of our offers, pushing them Over UDP",
+					dst, bundle.size()));
+			sendTokens(bundle, dst, true);
+		}
+	}
+
+	/**
+	 * Ask a neighbour for every wanted region it offers, in one bundle request
+	 * if there are several. Regions some vehicle was asked for within
+	 * ADHOC_REQUEST_TIMEOUT are left out.
+	 */
+	private void requestTokens(BitSet regions, NeighborTable.Neighbor n) {
+		long now = System.currentTimeMillis();
+		BitSet ask = new BitSet();
+		for (int i = regions.nextSetBit(0); i >= 0; i = regions
+				.nextSetBit(i + 1)) {
+			Long asked = requestsOutstanding.get(regionIndex.id(i));
+			if (asked == null || now - asked >= Globals.ADHOC_REQUEST_TIMEOUT) {
+				ask.set(i);
+			}
+		}
+		if (ask.isEmpty()) {
+			return;
+		}
+		for (int i = ask.nextSetBit(0); i >= 0; i = ask.nextSetBit(i + 1)) {
+			requestsOutstanding.put(regionIndex.id(i), now);
+		}
+
+		AdhocPacket p = new AdhocPacket(mId, mLoc);
+		p.dst = n.id;
+		if (ask.cardinality() == 1) {
+			p.type = AdhocPacket.TOKEN_REQUEST;
+			p.region = regionIndex.get(ask.nextSetBit(0)).id;
+		} else {
+			p.type = AdhocPacket.TOKEN_BUNDLE_REQUEST;
+			p.tokensWanted = ask;
+		}
+		log(String.format(
+				"Other vehicle %d offers %s, I want %s, GET %s Over UDP", n.id,
+				n.offers, queueKeySet(getsPending), ask));
+		udpStartTime = now;
+		sendPacket(p);
+	}
+
+	/**
+	 * Ask a neighbour offering req's region for its token. Returns false if
+	 * some vehicle was already asked for the region within
+	 * ADHOC_REQUEST_TIMEOUT.
+	 */
+	private boolean requestToken(ResRequest req, NeighborTable.Neighbor n) {
+		if (Globals.ADHOC_UDP_ONLY) { // UDP pathway
+			// only one vehicle at a time, so only one answers
+			long now = System.currentTimeMillis();
+			Long asked = requestsOutstanding.get(req.regionId);
+			if (asked != null && now - asked < Globals.ADHOC_REQUEST_TIMEOUT) {
+				return false;
+			}
+			requestsOutstanding.put(req.regionId, now);
+
+			// Send a TOKEN_REQUEST to that vehicle only
+			AdhocPacket p = new AdhocPacket(mId, mLoc);
+			p.type = AdhocPacket.TOKEN_REQUEST;
+			p.dst = n.id;
+			p.region = req.regionId;
+			udpStartTime = now;
+			sendPacket(p);
+		} else { // TCP pathway
+			new ResRequestTask().execute(req, "192.168.42." + n.id);
+		}
+		return true;
+	}
+
+	/** Periodic expiry of neighbors no longer heard */
+	private Runnable neighborExpireR = new Runnable() {
 		public void run() {
-			adhocAnnounce(false);
+			int expired = neighbors.expire(System.currentTimeMillis());
+			if (expired > 0) {
+				log_nodisplay(String.format(
+						"Expired %d neighbors, %d remain", expired,
+						neighbors.size()));
+			}
 			myHandler.postDelayed(this, Globals.ADHOC_ANNOUNCE_PERIOD);
 		}
 	};
@@ -906,21 +1352,100 @@ public class RoadRunnerService extends Service implements LocationListener {
 	 ***********************************************/
 
 	public void makeRequest(ResRequest r1) {
+		if (r1.type == ResRequest.RES_GET) {
+			useOffer(r1.regionId);
+			if (isCovered(r1.regionId)) {
+				log(String.format(
+						"Already have or are getting %s, request coalesced.",
+						r1.regionId));
+				return;
+			}
+		}
 		log(String.format("Adding new pending request for %s.", r1.regionId));
 		if (this.adhocEnabled) {
-			getsPending.add(r1); // queue up requests
+			// a neighbour already offering the region can be asked now
+			NeighborTable.Neighbor n = neighbors.bestOffering(
+					regionIndex.indexOf(r1.regionId), mLoc, linkRange());
+			if (n != null) {
+				log(String.format("Neighbor %d offers %s, GET it now",
+						n.id, r1.regionId));
+				if (Globals.ADHOC_UDP_ONLY) {
+					addPendingGet(r1);
+				}
+				requestToken(r1, n);
+				return;
+			}
+			addPendingGet(r1); // queue up requests
 			adhocAnnounce(true); // ask nearby vehicles to announce their
 									// offers
 		} else {
 			// send directly to cloud
-			new ResRequestTask().execute(r1, Globals.CLOUD_HOST);
+			sendToCloud(Collections.singletonList(r1));
+		}
+	}
+
+	/**
+	 * Request GETs for several regions. Without adhoc, they go to the cloud
+	 * in one batch.
+	 */
+	public void makeRequests(String... regionIds) {
+		if (this.adhocEnabled) {
+			for (String regionId : regionIds) {
+				makeRequest(new ResRequest(mId, ResRequest.RES_GET, regionId));
+			}
+			return;
 		}
+
+		List<ResRequest> reqs = new ArrayList<ResRequest>();
+		Set<String> asked = new HashSet<String>();
+		for (String regionId : regionIds) {
+			useOffer(regionId);
+			if (isCovered(regionId) || !asked.add(regionId)) {
+				log(String.format(
+						"Already have or are getting %s, request coalesced.",
+						regionId));
+				continue;
+			}
+			log(String.format("Adding new pending request for %s.", regionId));
+			reqs.add(new ResRequest(mId, ResRequest.RES_GET, regionId));
+		}
+		sendToCloud(reqs);
+	}
+
+	/**
+	 * Keep a token we are offering for a region we now need, so it isn't
+	 * given away or PUT back. Returns false if we offer none.
+	 */
+	private boolean useOffer(String regionId) {
+		if (this.reservationsInUse.containsKey(regionId)) {
+			return false;
+		}
+		ResRequest req = queuePoll(offers, regionId);
+		if (req == null) {
+			return false;
+		}
+		reservationsInUse.put(regionId, req);
+		log(String.format("Took %s back from offers, reservationsInUse: %s",
+				regionId, reservationsInUse));
+		announcer.check();
+		updateDisplay();
+		return true;
+	}
+
+	/**
+	 * True if a new GET for a region would be redundant: we hold its token,
+	 * or a GET for it is pending or in flight
+	 */
+	private boolean isCovered(String regionId) {
+		return this.reservationsInUse.containsKey(regionId)
+				|| queueKeySet(getsPending).contains(regionId)
+				|| getsInFlight.containsKey(regionId);
 	}
 
 	public void resetCloud() {
 		log(String.format("Sending ResRequest for DEBUG-RESET"));
 		ResRequest r1 = new ResRequest(mId, ResRequest.DEBUG_RESET, "Vassar-1");
-		new ResRequestTask().execute(r1, Globals.CLOUD_HOST);
+		sendToCloud(Collections.singletonList(r1));
 	}
 
 	/*** DEBUG make a fake request to test token transfers */
@@ -943,38 +1468,25 @@ public class RoadRunnerService extends Service implements LocationListener {
 		res.expires = getTime() + 30 * 60 * 1000;
 		res.hardDeadline = res.completed
 				+ Globals.REQUEST_DIRECT_PUT_DEADLINE_FROM_NOW;
-		this.offers.add(res);
+		addOffer(res);
 
 		log(String.format("Added to offers: %s", res.regionId));
 	}
 
 	public void makeReservationRouteA() {
 		log(String.format("Making ResRequests for route A"));
-		makeRequest(new ResRequest(mId, ResRequest.RES_GET, "Vassar-1"));
-		makeRequest(new ResRequest(mId, ResRequest.RES_GET, "Main-1"));
-		makeRequest(new ResRequest(mId, ResRequest.RES_GET, "Main-2"));
-		makeRequest(new ResRequest(mId, ResRequest.RES_GET, "Main-3"));
-		makeRequest(new ResRequest(mId, ResRequest.RES_GET, "Windsor-1"));
-		makeRequest(new ResRequest(mId, ResRequest.RES_GET, "Mass-1"));
-		makeRequest(new ResRequest(mId, ResRequest.RES_GET, "Mass-2"));
+		makeRequests("Vassar-1", "Main-1", "Main-2", "Main-3", "Windsor-1",
+				"Mass-1", "Mass-2");
 	}
 
 	public void makeReservationRouteB() {
 		log(String.format("Making ResRequests for route B"));
-		makeRequest(new ResRequest(mId, ResRequest.RES_GET, "Albany-1"));
-		makeRequest(new ResRequest(mId, ResRequest.RES_GET, "Albany-2"));
-		makeRequest(new ResRequest(mId, ResRequest.RES_GET, "Vassar-1"));
-		makeRequest(new ResRequest(mId, ResRequest.RES_GET, "Main-3"));
-		makeRequest(new ResRequest(mId, ResRequest.RES_GET, "Mass-2"));
+		makeRequests("Albany-1", "Albany-2", "Vassar-1", "Main-3", "Mass-2");
 	}
 
 	public void makeReservationRouteC() {
-		makeRequest(new ResRequest(mId, ResRequest.RES_GET, "Albany-1"));
-		makeRequest(new ResRequest(mId, ResRequest.RES_GET, "Portland-1"));
-		makeRequest(new ResRequest(mId, ResRequest.RES_GET, "Main-2"));
-		makeRequest(new ResRequest(mId, ResRequest.RES_GET, "Vassar-1"));
-		makeRequest(new ResRequest(mId, ResRequest.RES_GET, "Main-3"));
-		makeRequest(new ResRequest(mId, ResRequest.RES_GET, "Mass-2"));
+		makeRequests("Albany-1", "Portland-1", "Main-2", "Vassar-1", "Main-3",
+				"Mass-2");
 		log(String.format("Adding ResRequests for route C"));
 
 	}
@@ -983,44 +1495,28 @@ public class RoadRunnerService extends Service implements LocationListener {
 	 * Interface to adhoc network
 	 ***********************************************/
 
-	/** Asynchronous background task for sending packets to the network */
-	public class SendPacketsTask extends AsyncTask<AdhocPacket, Integer, Long> {
-		@Override
-		protected Long doInBackground(AdhocPacket... packets) {
-			long count = packets.length;
-			long sent = 0;
-			for (int i = 0; i < count; i++) {
-				AdhocPacket adhocPacket = packets[i];
-
-				ByteArrayOutputStream bos = new ByteArrayOutputStream();
-				try {
-					ObjectOutput out = new ObjectOutputStream(bos);
-					out.writeObject(adhocPacket);
-					out.close();
-					byte[] data = bos.toByteArray();
-					publishProgress((int) i + 1, (int) count);
-					if (aat != null) {
-						aat.sendData(data);
-					}
-					sent++;
-					log_nodisplay(String.format(
-							"sent %d byte adhoc packet type %d", data.length,
-							adhocPacket.type));
-				} catch (Exception e) {
-					log("error sending adhoc announcement:" + e.getMessage());
-				}
-			}
-			return sent;
+	/** Queue a packet on the adhoc sender thread */
+	void sendPacket(AdhocPacket p) {
+		p.epoch = epoch;
+		if (sender != null) {
+			sender.enqueue(p);
 		}
+	}
 
-		protected void onProgressUpdate(Integer... progress) {
-			// log("Sending " + progress[0] + " of " + progress[1] +
-			// " packets...");
-		}
+	/** A token sent to another vehicle was never ACKed; offer it again */
+	void transferFailed(ResRequest req) {
+		addOffer(req);
+		log(String.format("Added back to offers: %s", req.regionId));
+		announcer.check();
+		updateDisplay();
+	}
 
-		protected void onPostExecute(Long result) {
-			// log("Sent " + result + " adhoc UDP packets");
-		}
+	/** A token we pushed was refused; offer it again */
+	void transferRejected(ResRequest req) {
+		addOffer(req);
+		log(String.format("Took back rejected token: %s", req.regionId));
+		announcer.check();
+		updateDisplay();
 	}
 
 	/***********************************************
@@ -1046,6 +1542,14 @@ public class RoadRunnerService extends Service implements LocationListener {
 				| PowerManager.ON_AFTER_RELEASE, TAG);
 		wl.acquire();
 
+		// The WiFi driver drops multicast unless someone holds this
+		if (Globals.ADHOC_GEOCAST) {
+			WifiManager wm = (WifiManager) getApplicationContext()
+					.getSystemService(Context.WIFI_SERVICE);
+			ml = wm.createMulticastLock(TAG);
+			ml.acquire();
+		}
+
 		lm = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
 		lm.requestLocationUpdates(LocationManager.GPS_PROVIDER, 1000, 1f, this);
 
@@ -1059,6 +1563,9 @@ public class RoadRunnerService extends Service implements LocationListener {
 		if (wl != null) {
 			wl.release();
 		}
+		if (ml != null) {
+			ml.release();
+		}
 
 		if (lm != null) {
 			lm.removeUpdates(this);
@@ -1081,32 +1588,59 @@ public class RoadRunnerService extends Service implements LocationListener {
 		// say("Service started.");
 
 		// Set up regions
-		if (Globals.NAV_REQUESTS) {
-			this.regions = experimentFullRegions();
-		} else {
-			this.regions = experimentSuperDenseRegions();
+		this.regionIndex = loadRegionFile();
+		if (this.regionIndex == null) {
+			if (Globals.NAV_REQUESTS) {
+				this.regionIndex = experimentFullRegions();
+			} else {
+				this.regionIndex = experimentSuperDenseRegions();
+			}
 		}
+		this.mCurrentRegion = null;
+		// peers with the same region set exchange region indexes
+		AdhocPacketCodec.setDictionary(this.regionIndex);
 
 		// Initialize state
 		this.reservationsInUse = new ConcurrentHashMap<String, ResRequest>();
 		this.getsPending = new ConcurrentLinkedQueue<ResRequest>();
 		this.offers = new ConcurrentLinkedQueue<ResRequest>();
 		this.penalties = new ConcurrentLinkedQueue<ResRequest>();
-		this.noncesHeard = new HashMap<Long, HashSet<Long>>();
+		this.noncesHeard = new NonceWindow();
+		this.neighbors = new NeighborTable();
+		this.offerDelta = new OfferDelta();
+		this.resyncsWanted = new LinkedHashSet<Long>();
+		this.requestsOutstanding = new HashMap<String, Long>();
+		this.getsInFlight = new HashMap<String, ResRequest>();
+		this.tokenVerdicts = new LinkedHashMap<String, Set<String>>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Set<String>> e) {
+				return size() > Globals.ADHOC_TOKEN_VERDICTS;
+			}
+		};
+		this.transfers = new ReliableTransfer(this, myHandler);
+		this.announcer = new AnnounceScheduler(this, myHandler);
 
-		// Start recurring runnables
-		myHandler.postDelayed(cloudDirectGetRequestCheck,
-				Globals.REQUEST_DEADLINE_CHECK_PERIOD);
-		myHandler.postDelayed(cloudDirectPutRequestCheck,
-				Globals.REQUEST_DEADLINE_CHECK_PERIOD);
-		myHandler.postDelayed(penaltyCheck,
-				Globals.REQUEST_PENALTY_CHECK_PERIOD);
+		this.deadlines = new DeadlineScheduler(this, myHandler);
+
+		if (Globals.CLOUD_NIO) {
+			try {
+				cloudClient = new CloudClient(this);
+				cloudClient.start();
+			} catch (IOException e) {
+				log("Cannot start cloud client, using blocking requests: "
+						+ e.getMessage());
+			}
+		}
 
 		if (this.adhocEnabled) {
 			// Start the adhoc UDP announcement thread
 			log("Starting adhoc announce thread...");
 			aat = new AdhocPacketThread(myHandler, this);
 			aat.start();
+			sender = new AdhocSenderThread(this, aat);
+			sender.start();
 
 			if (!Globals.ADHOC_UDP_ONLY) {
 				// Start the adhoc TCP server thread
@@ -1118,6 +1652,8 @@ public class RoadRunnerService extends Service implements LocationListener {
 			// take last octet of IPv4 address as my id
 			mId = (aat.getLocalAddress().getAddress()[3] & 0xff);
 			log("mId=" + mId);
+			aat.setFilter(mId, mLoc);
+			aat.setCell(mLoc);
 
 			/*
 			 * byte[] bytes = aat.getLocalAddress().getAddress(); long value =
@@ -1125,8 +1661,10 @@ public class RoadRunnerService extends Service implements LocationListener {
 			 * + (bytes[i] & 0xff); } mId = value;
 			 */
 
-			// Start recurring UDP adhoc announcements
-			myHandler.post(adhocAnnounceR);
+			// Start adaptive UDP adhoc announcements
+			announcer.start();
+			myHandler.postDelayed(neighborExpireR,
+					Globals.ADHOC_ANNOUNCE_PERIOD);
 		} else {
 			mId = 255; // cloud-only doesn't need unique IDs
 		}
@@ -1134,8 +1672,39 @@ public class RoadRunnerService extends Service implements LocationListener {
 		updateDisplay();
 	}
 
+	/**
+	 * Region set from external storage, or null to use the built-in sets. A
+	 * text definition newer than the region file is compiled into it first.
+	 */
+	private RegionIndex loadRegionFile() {
+		File dir = Environment.getExternalStorageDirectory();
+		File bin = new File(dir, Globals.REGION_FILE);
+		File text = new File(dir, Globals.REGION_TEXT_FILE);
+
+		try {
+			if (text.exists()
+					&& (!bin.exists() || text.lastModified() > bin
+							.lastModified())) {
+				RegionIndex idx = new RegionIndex(RegionFile.readText(text));
+				RegionFile.write(idx, bin);
+				log(String.format("Compiled %d regions from %s into %s",
+						idx.size(), text, bin));
+			}
+			if (bin.exists()) {
+				RegionIndex idx = RegionFile.map(bin);
+				log(String.format("Mapped %d regions from %s", idx.size(),
+						bin));
+				return idx;
+			}
+		} catch (IOException e) {
+			log("Couldn't load region file, using built-in regions: "
+					+ e.getMessage());
+		}
+		return null;
+	}
+
 	/** Test regions in Stata courtyard */
-	private List<Region> stataRegions() {
+	private RegionIndex stataRegions() {
 		List<Region> rs = new ArrayList<Region>();
 		Region r;
 
@@ -1162,29 +1731,30 @@ public class RoadRunnerService extends Service implements LocationListener {
 		r.addVertex(42.36131865577206, -71.08895659446716);
 		r.addVertex(42.361366221645646, -71.08989000320435);
 		rs.add(r);
+		RegionIndex idx = new RegionIndex(rs);
 
 		log("Testing regions and getRegion logic...");
 		Location l;
 		l = new Location("");
 		l.setLatitude(42.36196871959442);
 		l.setLongitude(-71.0893964767456);
-		log(String.format("Test point 1 is in region %s", getRegion(rs, l)));
+		log(String.format("Test point 1 is in region %s", getRegion(idx, l)));
 
 		l = new Location("");
 		l.setLatitude(42.361659543737126);
 		l.setLongitude(-71.0893964767456);
-		log(String.format("Test point 2 is in region %s", getRegion(rs, l)));
+		log(String.format("Test point 2 is in region %s", getRegion(idx, l)));
 
 		l = new Location("");
 		l.setLatitude(42.36140585984613);
 		l.setLongitude(-71.0893964767456);
-		log(String.format("Test point 3 is in region %s", getRegion(rs, l)));
+		log(String.format("Test point 3 is in region %s", getRegion(idx, l)));
 
-		return rs;
+		return idx;
 	}
 
 	/** Regions for super-dense experiment on Vassar Street */
-	private List<Region> experimentSuperDenseRegions() {
+	private RegionIndex experimentSuperDenseRegions() {
 		List<Region> rs = new ArrayList<Region>();
 		Region r;
 
@@ -1195,6 +1765,7 @@ public class RoadRunnerService extends Service implements LocationListener {
 		r.addVertex(42.362234369747256, -71.08898343712616);
 		r.addVertex(42.36113243298882, -71.09136523873138);
 		rs.add(r);
+		RegionIndex idx = new RegionIndex(rs);
 
 		log("Testing regions and getRegion logic...");
 		Location l;
@@ -1202,13 +1773,13 @@ public class RoadRunnerService extends Service implements LocationListener {
 		l.setLatitude(42.361921154176926);
 		l.setLongitude(-71.09134912490845);
 		log(String.format("Test point Stata-1 is in region %s",
-				getRegion(rs, l)));
+				getRegion(idx, l)));
 
-		return rs;
+		return idx;
 	}
 
 	/** Regions in experiment A */
-	private List<Region> experimentFullRegions() {
+	private RegionIndex experimentFullRegions() {
 		List<Region> rs = new ArrayList<Region>();
 		Region r;
 
@@ -1315,6 +1886,7 @@ public class RoadRunnerService extends Service implements LocationListener {
 		r.addVertex(42.36264660011392, -71.09166564614105);
 		r.addVertex(42.36303504548448, -71.09157981545258);
 		rs.add(r);
+		RegionIndex idx = new RegionIndex(rs);
 
 		Location l;
 
@@ -1322,132 +1894,157 @@ public class RoadRunnerService extends Service implements LocationListener {
 		l.setLatitude(42.36035940296916);
 		l.setLongitude(-71.0944926738739);
 		log(String.format("Test point on Vassar is in region %s",
-				getRegion(rs, l)));
+				getRegion(idx, l)));
 
 		l = new Location("");
 		l.setLatitude(42.36081921192526);
 		l.setLongitude(-71.09338760375977);
 		log(String.format("Test point on Vassar is in region %s",
-				getRegion(rs, l)));
+				getRegion(idx, l)));
 
 		l = new Location("");
 		l.setLatitude(42.36160405047349);
 		l.setLongitude(-71.0919177532196);
 		log(String.format("Test point on Vassar is in region %s",
-				getRegion(rs, l)));
+				getRegion(idx, l)));
 
 		l = new Location("");
 		l.setLatitude(42.3619370093201);
 		l.setLongitude(-71.09123110771179);
 		log(String.format("Test point on Vassar is in region %s",
-				getRegion(rs, l)));
+				getRegion(idx, l)));
 
 		l = new Location("");
 		l.setLatitude(42.36234924163794);
 		l.setLongitude(-71.09039425849915);
 		log(String.format("Test point on Vassar is in region %s",
-				getRegion(rs, l)));
+				getRegion(idx, l)));
 
 		l = new Location("");
 		l.setLatitude(42.3631736981596);
 		l.setLongitude(-71.09626293182373);
 		log(String.format("Test point on Main-1 is in region %s",
-				getRegion(rs, l)));
+				getRegion(idx, l)));
 
 		l = new Location("");
 		l.setLatitude(42.36303893196785);
 		l.setLongitude(-71.09436392784119);
 		log(String.format("Test point on Main-1 is in region %s",
-				getRegion(rs, l)));
+				getRegion(idx, l)));
 
 		l = new Location("");
 		l.setLatitude(42.362935875273244);
 		l.setLongitude(-71.09288334846497);
 		log(String.format("Test point on Main-2 is in region %s",
-				getRegion(rs, l)));
+				getRegion(idx, l)));
 
 		l = new Location("");
 		l.setLatitude(42.362785253646265);
 		l.setLongitude(-71.09100580215454);
 		log(String.format("Test point on Main-3 is in region %s",
-				getRegion(rs, l)));
+				getRegion(idx, l)));
 
 		l = new Location("");
 		l.setLatitude(42.362476081807);
 		l.setLongitude(-71.0936987400055);
 		log(String.format("Test point on Portland-1 is in region %s",
-				getRegion(rs, l)));
+				getRegion(idx, l)));
 
 		l = new Location("");
 		l.setLatitude(42.36099362133876);
 		l.setLongitude(-71.09561920166016);
 		log(String.format("Test point on Albany-1 is in region %s",
-				getRegion(rs, l)));
+				getRegion(idx, l)));
 
 		l = new Location("");
 		l.setLatitude(42.36154855716084);
 		l.setLongitude(-71.0943853855133);
 		log(String.format("Test point on Albany-1 is in region %s",
-				getRegion(rs, l)));
+				getRegion(idx, l)));
 
 		l = new Location("");
 		l.setLatitude(42.362008357414815);
 		l.setLongitude(-71.093430519104);
 		log(String.format("Test point on Albany-2 is in region %s",
-				getRegion(rs, l)));
+				getRegion(idx, l)));
 
 		l = new Location("");
 		l.setLatitude(42.362610849206014);
 		l.setLongitude(-71.09221816062927);
 		log(String.format("Test point on Albany-2 is in region %s",
-				getRegion(rs, l)));
+				getRegion(idx, l)));
 
 		l = new Location("");
 		l.setLatitude(42.3611521749309);
 		l.setLongitude(-71.09653115272522);
 		log(String.format("Test point on Mass-1 is in region %s",
-				getRegion(rs, l)));
+				getRegion(idx, l)));
 
 		l = new Location("");
 		l.setLatitude(42.3604862471552);
 		l.setLongitude(-71.09537243843079);
 		log(String.format("Test point on Mass-2 is in region %s",
-				getRegion(rs, l)));
+				getRegion(idx, l)));
 
 		l = new Location("");
 		l.setLatitude(42.36238887921827);
 		l.setLongitude(-71.09683156013489);
 		log(String.format("Test point on Windsor-1 is in region %s",
-				getRegion(rs, l)));
+				getRegion(idx, l)));
 
-		return rs;
+		return idx;
 	}
 
-	// http://stackoverflow.com/questions/1066589/java-iterate-through-hashmap
-	private String getRegion(List<Region> rs, Location loc) {
-		Iterator<Region> it = rs.iterator();
-		while (it.hasNext()) {
-			Region r = (Region) it.next();
-			if (r.contains(loc)) {
-				return r.id;
-			}
-		}
-		return "FREE";
+	/** Look up the region a location falls in through the spatial index */
+	private String getRegion(RegionIndex idx, Location loc) {
+		Region r = idx.find(loc);
+		return (r != null) ? r.id : "FREE";
 	}
 
 	public synchronized void stop() {
 		log("Stopping service...");
 
-		myHandler.removeCallbacks(adhocAnnounceR);
-		myHandler.removeCallbacks(cloudDirectGetRequestCheck);
-		myHandler.removeCallbacks(cloudDirectPutRequestCheck);
+		myHandler.removeCallbacks(neighborExpireR);
+		if (announcer != null) {
+			log(announcer.stats());
+			announcer.stop();
+		}
+		if (deadlines != null) {
+			log(deadlines.stats());
+			deadlines.clear();
+		}
+
+		if (transfers != null) {
+			transfers.clear();
+		}
+		if (neighbors != null) {
+			neighbors.clear();
+		}
+
+		log("Terminating adhoc sender thread...");
+		if (sender != null) {
+			log(sender.stats());
+			sender.close();
+			sender = null;
+		}
 
 		log("Terminating adhoc announce thread...");
 		if (aat != null) {
+			log(String.format("Adhoc header filter dropped %d packets",
+					aat.droppedCount()));
+			log(aat.reassemblyStats());
 			aat.close();
 			aat = null;
 		}
 
+		log(cloudPool.stats());
+		cloudPool.clear();
+		if (cloudClient != null) {
+			log(cloudClient.stats());
+			cloudClient.close();
+			cloudClient = null;
+		}
+
 		log("Terminating adhoc server thread WiFi...");
 		if (ast != null) {
 			ast.close();
@@ -1478,12 +2075,21 @@ public class RoadRunnerService extends Service implements LocationListener {
 		 */
 
 		this.mLoc = loc;
+		if (aat != null) {
+			aat.setFilter(mId, loc);
+			aat.setCell(loc);
+		}
 
 		// did we enter a new region?
 		String oldRegion = this.mRegion;
-		String newRegion = getRegion(this.regions, loc);
+		// start the search from the region we are in and its neighbours
+		this.mCurrentRegion = this.regionIndex.find(loc.getLatitude(),
+				loc.getLongitude(), this.mCurrentRegion);
+		String newRegion = (this.mCurrentRegion != null) ? this.mCurrentRegion.id
+				: "FREE";
 		if (!oldRegion.equals(newRegion)) {
 			regionTransition(oldRegion, newRegion);
+			announcer.check();
 		}
 		updateDisplay();
 	}
@@ -1495,11 +2101,11 @@ public class RoadRunnerService extends Service implements LocationListener {
 			if (oldRes.type == ResRequest.PENALTY) {
 				// Penalty reservation expires in 10 min
 				oldRes.hardDeadline = now + 600000;
-				this.penalties.add(oldRes);
+				addPenalty(oldRes);
 			} else {
 				oldRes.hardDeadline = now
 						+ Globals.REQUEST_DIRECT_PUT_DEADLINE_FROM_NOW;
-				this.offers.add(oldRes);
+				addOffer(oldRes);
 			}
 		}
 	}
@@ -1616,7 +2222,7 @@ public class RoadRunnerService extends Service implements LocationListener {
 				log(String.format("Adding new pending request for %s.",
 						r1.regionId));
 				// send directly to cloud
-				new ResRequestTask().execute(r1, Globals.CLOUD_HOST);
+				sendToCloud(Collections.singletonList(r1));
 			} else if ("Stata-1".equals(newRegion)) {
 				log("Cleared old pending GETs in Stata-1.");
 				getsPending.clear();
@@ -1636,10 +2242,7 @@ public class RoadRunnerService extends Service implements LocationListener {
 							&& !canDriveOn("Windsor-1")) {
 						log("Cleared old pending GETs.");
 						getsPending.clear();
-						makeRequest(new ResRequest(mId, ResRequest.RES_GET,
-								"Albany-1"));
-						makeRequest(new ResRequest(mId, ResRequest.RES_GET,
-								"Albany-2"));
+						makeRequests("Albany-1", "Albany-2");
 					} else if ("Main-2".equals(newRegion)
 							&& !canDriveOn("Albany-1")) {
 						log("Cleared old pending GETs.");
@@ -1663,10 +2266,7 @@ public class RoadRunnerService extends Service implements LocationListener {
 							&& !canDriveOn("Windsor-1")) {
 						log("Cleared old pending GETs.");
 						getsPending.clear();
-						makeRequest(new ResRequest(mId, ResRequest.RES_GET,
-								"Albany-1"));
-						makeRequest(new ResRequest(mId, ResRequest.RES_GET,
-								"Albany-2"));
+						makeRequests("Albany-1", "Albany-2");
 					} else if ("Mass-2".equals(newRegion)
 							&& !canDriveOn("Albany-1")) {
 						log("Cleared old pending GETs.");
@@ -1687,27 +2287,15 @@ public class RoadRunnerService extends Service implements LocationListener {
 				if (!directionCcw) { // Main-Vassar-Mass
 					if ("Main-1".equals(newRegion)) {
 						log("PRERESERVE: Making reservations while in Main-1.");
-						makeRequest(new ResRequest(mId, ResRequest.RES_GET,
-								"Windsor-1"));
-						makeRequest(new ResRequest(mId, ResRequest.RES_GET,
-								"Albany-1"));
-						makeRequest(new ResRequest(mId, ResRequest.RES_GET,
-								"Albany-2"));
-						makeRequest(new ResRequest(mId, ResRequest.RES_GET,
-								"Vassar-1"));
+						makeRequests("Windsor-1", "Albany-1", "Albany-2",
+								"Vassar-1");
 						say("Please slow down for 1 minute.");
 					}
 				} else { // Mass-Vassar-Main
 					if ("Mass-1".equals(newRegion)) {
 						log("PRERESERVE: Making reservations while in Mass-1.");
-						makeRequest(new ResRequest(mId, ResRequest.RES_GET,
-								"Windsor-1"));
-						makeRequest(new ResRequest(mId, ResRequest.RES_GET,
-								"Albany-1"));
-						makeRequest(new ResRequest(mId, ResRequest.RES_GET,
-								"Albany-2"));
-						makeRequest(new ResRequest(mId, ResRequest.RES_GET,
-								"Vassar-1"));
+						makeRequests("Windsor-1", "Albany-1", "Albany-2",
+								"Vassar-1");
 						say("Please slow down for 1 minute.");
 					}
 				}
@@ -1760,16 +2348,15 @@ public class RoadRunnerService extends Service implements LocationListener {
 		switch (status) {
 		case LocationProvider.OUT_OF_SERVICE:
 			log("LocationProvider out of service, stopping adhoc announcements.");
-			// myHandler.removeCallbacks(adhocAnnounceR);
+			// announcer.stop();
 			break;
 		case LocationProvider.TEMPORARILY_UNAVAILABLE:
 			log("LocationProvider temporarily unavailable, stopping adhoc announcements.");
-			// myHandler.removeCallbacks(adhocAnnounceR);
+			// announcer.stop();
 			break;
 		case LocationProvider.AVAILABLE:
 			log("LocationProvider available, starting adhoc announcements.");
-			// myHandler.postDelayed(adhocAnnounceR,
-			// Globals.ADHOC_ANNOUNCE_PERIOD);
+			// announcer.start();
 			break;
 		}
 	}
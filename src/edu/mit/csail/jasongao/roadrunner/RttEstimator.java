@@ -0,0 +1,34 @@
+package edu.mit.csail.jasongao.roadrunner;
+
+/**
+ * Round-trip time estimate for one adhoc peer, using the smoothed RTT and
+ * variance update from TCP (RFC 6298). Only fed samples from packets that
+ * were not retransmitted, so an ACK is never matched to the wrong copy.
+ */
+public class RttEstimator {
+	private long srtt = -1; // ms, -1 until the first sample
+	private long rttvar;
+	private long rto = Globals.ADHOC_INITIAL_RTO;
+
+	public void sample(long rtt) {
+		if (srtt < 0) {
+			srtt = rtt;
+			rttvar = rtt / 2;
+		} else {
+			rttvar += (Math.abs(srtt - rtt) - rttvar) / 4;
+			srtt += (rtt - srtt) / 8;
+		}
+		rto = Math.max(Globals.ADHOC_MIN_RTO,
+				Math.min(Globals.ADHOC_MAX_RTO, srtt + 4 * rttvar));
+	}
+
+	/** Retransmission timeout for the first transmission, in ms */
+	public long rto() {
+		return rto;
+	}
+
+	/** Smoothed RTT in ms, or -1 without samples */
+	public long srtt() {
+		return srtt;
+	}
+}